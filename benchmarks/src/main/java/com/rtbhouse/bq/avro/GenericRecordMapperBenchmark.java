@@ -0,0 +1,86 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.mapred.AvroKey;
+import org.apache.avro.mapreduce.AvroJob;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The whole map call of {@link AvroToJson.GenericRecordMapper}, with a context whose writer only
+ * counts the bytes it is given.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GenericRecordMapperBenchmark {
+
+    private final AvroToJson.GenericRecordMapper mapper = new AvroToJson.GenericRecordMapper();
+
+    private final AvroKey<GenericRecord> key = new AvroKey<>();
+
+    private final CountingRecordWriter writer = new CountingRecordWriter();
+
+    private Mapper<AvroKey<GenericRecord>, NullWritable, Text, NullWritable>.Context context;
+
+    @Setup
+    public void setup(RecordState records) throws IOException, InterruptedException {
+        Job job = Job.getInstance(new Configuration());
+        AvroJob.setInputKeySchema(job, records.schema);
+        SchemaMetadata.store(job.getConfiguration(), records.schema);
+        Configuration conf = job.getConfiguration();
+        MapContextImpl<AvroKey<GenericRecord>, NullWritable, Text, NullWritable> mapContext = new MapContextImpl<>(
+            conf, new TaskAttemptID(), null, writer, null, new TaskAttemptContextImpl.DummyReporter(),
+            new FileSplit(new Path("benchmark.avro"), 0, 0, null));
+        context = new WrappedMapper<AvroKey<GenericRecord>, NullWritable, Text, NullWritable>().getMapContext(mapContext);
+        mapper.setup(context);
+    }
+
+    @Benchmark
+    public long map(RecordState records) throws IOException, InterruptedException {
+        key.datum(records.next());
+        mapper.map(key, NullWritable.get(), context);
+        return writer.bytes;
+    }
+
+    private static final class CountingRecordWriter extends RecordWriter<Text, NullWritable> {
+
+        private long bytes;
+
+        @Override
+        public void write(Text json, NullWritable value) {
+            bytes += json.getLength();
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) {
+        }
+    }
+}
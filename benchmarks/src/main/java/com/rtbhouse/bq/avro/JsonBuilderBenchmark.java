@@ -0,0 +1,44 @@
+package com.rtbhouse.bq.avro;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBuilderBenchmark {
+
+    private JsonBuilder jsonBuilder;
+
+    private final JsonOutput output = new JsonOutput();
+
+    @Setup
+    public void setup(RecordState records) {
+        jsonBuilder = new JsonBuilder(records.schema);
+    }
+
+    @Benchmark
+    public String buildString(RecordState records) {
+        return jsonBuilder.build(records.next());
+    }
+
+    @Benchmark
+    public int buildOutput(RecordState records) {
+        output.reset();
+        jsonBuilder.build(records.next(), output);
+        return output.getLength();
+    }
+}
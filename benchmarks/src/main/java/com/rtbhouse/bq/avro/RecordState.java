@@ -0,0 +1,42 @@
+package com.rtbhouse.bq.avro;
+
+import java.util.List;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A pool of generated records of one shape, handed out round robin so a benchmark does not keep
+ * converting the same record.
+ */
+@State(Scope.Thread)
+public class RecordState {
+
+    private static final int RECORDS = 256;
+
+    @Param({"WIDE", "NESTED", "MAPS", "ESCAPES", "BYTES"})
+    public Records shape;
+
+    public Schema schema;
+
+    private GenericRecord[] records;
+
+    private int next;
+
+    @Setup
+    public void setup() {
+        schema = shape.schema();
+        List<GenericRecord> generated = shape.generate(schema, RECORDS);
+        records = generated.toArray(new GenericRecord[generated.size()]);
+    }
+
+    public GenericRecord next() {
+        GenericRecord record = records[next];
+        next = (next + 1) % records.length;
+        return record;
+    }
+}
@@ -0,0 +1,244 @@
+package com.rtbhouse.bq.avro;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+
+/**
+ * Synthetic Avro records of the shapes the benchmarks run on. Generation is seeded, so every run
+ * measures the same data.
+ */
+public enum Records {
+
+    WIDE {
+        @Override
+        Schema schema() {
+            SchemaBuilder.FieldAssembler<Schema> fields = SchemaBuilder.record("Wide").namespace(NAMESPACE).fields();
+            for (int i = 0; i < WIDE_FIELDS; i++) {
+                switch (i % 5) {
+                    case 0:
+                        fields = fields.requiredLong("long" + i);
+                        break;
+                    case 1:
+                        fields = fields.requiredDouble("double" + i);
+                        break;
+                    case 2:
+                        fields = fields.requiredString("string" + i);
+                        break;
+                    case 3:
+                        fields = fields.requiredBoolean("boolean" + i);
+                        break;
+                    default:
+                        fields = fields.optionalString("optional" + i);
+                }
+            }
+            return fields.endRecord();
+        }
+
+        @Override
+        GenericRecord record(Schema schema, Random random) {
+            GenericRecord record = new GenericData.Record(schema);
+            for (int i = 0; i < WIDE_FIELDS; i++) {
+                switch (i % 5) {
+                    case 0:
+                        record.put(i, random.nextLong());
+                        break;
+                    case 1:
+                        record.put(i, random.nextDouble() * 1000);
+                        break;
+                    case 2:
+                        record.put(i, ascii(random, 8 + random.nextInt(24)));
+                        break;
+                    case 3:
+                        record.put(i, random.nextBoolean());
+                        break;
+                    default:
+                        record.put(i, random.nextBoolean() ? null : ascii(random, 16));
+                }
+            }
+            return record;
+        }
+    },
+
+    NESTED {
+        @Override
+        Schema schema() {
+            Schema leaf = SchemaBuilder.record("Leaf").namespace(NAMESPACE).fields()
+                .requiredLong("id")
+                .requiredString("name")
+                .endRecord();
+            Schema level = SchemaBuilder.record("Level" + NESTED_DEPTH).namespace(NAMESPACE).fields()
+                .requiredLong("id")
+                .name("leaves").type().array().items(leaf).noDefault()
+                .endRecord();
+            for (int depth = NESTED_DEPTH - 1; depth >= 0; depth--) {
+                level = SchemaBuilder.record("Level" + depth).namespace(NAMESPACE).fields()
+                    .requiredLong("id")
+                    .requiredString("name")
+                    .name("tags").type().array().items().stringType().noDefault()
+                    .name("child").type().optional().type(level)
+                    .endRecord();
+            }
+            return level;
+        }
+
+        @Override
+        GenericRecord record(Schema schema, Random random) {
+            GenericRecord record = new GenericData.Record(schema);
+            record.put("id", random.nextLong());
+            if (schema.getField("leaves") != null) {
+                Schema leafSchema = schema.getField("leaves").schema().getElementType();
+                List<GenericRecord> leaves = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    GenericRecord leaf = new GenericData.Record(leafSchema);
+                    leaf.put("id", random.nextLong());
+                    leaf.put("name", ascii(random, 12));
+                    leaves.add(leaf);
+                }
+                record.put("leaves", leaves);
+                return record;
+            }
+            record.put("name", ascii(random, 12));
+            List<String> tags = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                tags.add(ascii(random, 6));
+            }
+            record.put("tags", tags);
+            Schema child = schema.getField("child").schema().getTypes().get(1);
+            record.put("child", record(child, random));
+            return record;
+        }
+    },
+
+    MAPS {
+        @Override
+        Schema schema() {
+            return SchemaBuilder.record("Maps").namespace(NAMESPACE).fields()
+                .requiredLong("id")
+                .name("counts").type().map().values().longType().noDefault()
+                .name("labels").type().map().values().stringType().noDefault()
+                .name("scores").type().map().values().doubleType().noDefault()
+                .endRecord();
+        }
+
+        @Override
+        GenericRecord record(Schema schema, Random random) {
+            GenericRecord record = new GenericData.Record(schema);
+            Map<String, Long> counts = new HashMap<>();
+            Map<String, String> labels = new HashMap<>();
+            Map<String, Double> scores = new HashMap<>();
+            for (int i = 0; i < MAP_ENTRIES; i++) {
+                counts.put("count_" + i, (long) random.nextInt(100000));
+                labels.put("label_" + i, ascii(random, 10));
+                scores.put("score_" + i, random.nextDouble());
+            }
+            record.put("id", random.nextLong());
+            record.put("counts", counts);
+            record.put("labels", labels);
+            record.put("scores", scores);
+            return record;
+        }
+    },
+
+    ESCAPES {
+        @Override
+        Schema schema() {
+            SchemaBuilder.FieldAssembler<Schema> fields = SchemaBuilder.record("Escapes").namespace(NAMESPACE).fields();
+            for (int i = 0; i < ESCAPE_FIELDS; i++) {
+                fields = fields.requiredString("text" + i);
+            }
+            return fields.endRecord();
+        }
+
+        @Override
+        GenericRecord record(Schema schema, Random random) {
+            GenericRecord record = new GenericData.Record(schema);
+            for (int i = 0; i < ESCAPE_FIELDS; i++) {
+                StringBuilder text = new StringBuilder();
+                int length = 1024 + random.nextInt(3072);
+                while (text.length() < length) {
+                    text.append(ascii(random, random.nextInt(16)));
+                    text.append(ESCAPED[random.nextInt(ESCAPED.length)]);
+                }
+                record.put(i, text.toString());
+            }
+            return record;
+        }
+    },
+
+    BYTES {
+        @Override
+        Schema schema() {
+            SchemaBuilder.FieldAssembler<Schema> fields = SchemaBuilder.record("Bytes").namespace(NAMESPACE).fields()
+                .requiredLong("id")
+                .name("digest").type().fixed("Digest").size(16).noDefault();
+            for (int i = 0; i < BYTES_FIELDS; i++) {
+                fields = fields.requiredBytes("payload" + i);
+            }
+            return fields.endRecord();
+        }
+
+        @Override
+        GenericRecord record(Schema schema, Random random) {
+            GenericRecord record = new GenericData.Record(schema);
+            byte[] digest = new byte[16];
+            random.nextBytes(digest);
+            record.put("id", random.nextLong());
+            record.put("digest", new GenericData.Fixed(schema.getField("digest").schema(), digest));
+            for (int i = 0; i < BYTES_FIELDS; i++) {
+                byte[] payload = new byte[256 + random.nextInt(3840)];
+                random.nextBytes(payload);
+                record.put("payload" + i, ByteBuffer.wrap(payload));
+            }
+            return record;
+        }
+    };
+
+    private static final String NAMESPACE = "com.rtbhouse.bq.avro.benchmark";
+
+    private static final int WIDE_FIELDS = 100;
+
+    private static final int NESTED_DEPTH = 8;
+
+    private static final int MAP_ENTRIES = 50;
+
+    private static final int ESCAPE_FIELDS = 8;
+
+    private static final int BYTES_FIELDS = 4;
+
+    private static final String[] ESCAPED = {
+        "\"", "\\", "/", "\n", "\r", "\t", "\b", "\f", "\u0001", "\u007f", " ",
+        "za\u017c\u00f3\u0142\u0107", "\u6f22\u5b57", "\ud83d\ude00", "\u2028"
+    };
+
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 ";
+
+    abstract Schema schema();
+
+    abstract GenericRecord record(Schema schema, Random random);
+
+    public List<GenericRecord> generate(Schema schema, int count) {
+        Random random = new Random(count);
+        List<GenericRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(record(schema, random));
+        }
+        return records;
+    }
+
+    private static String ascii(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+        return new String(chars);
+    }
+}
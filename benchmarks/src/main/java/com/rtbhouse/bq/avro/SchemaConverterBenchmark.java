@@ -0,0 +1,42 @@
+package com.rtbhouse.bq.avro;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.Schema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SchemaConverterBenchmark {
+
+    @Param({"WIDE", "NESTED", "MAPS", "ESCAPES", "BYTES"})
+    public Records shape;
+
+    private final SchemaConverter schemaConverter = new SchemaConverter();
+
+    private Schema schema;
+
+    @Setup
+    public void setup() {
+        schema = shape.schema();
+    }
+
+    @Benchmark
+    public String convert() {
+        return schemaConverter.convert(schema);
+    }
+}
@@ -0,0 +1,33 @@
+package com.rtbhouse.bq.avro;
+
+import org.apache.avro.Schema;
+
+/**
+ * A decompressed data block of an Avro container file together with its writer schema.
+ */
+public class AvroBlock {
+
+    private final Schema schema;
+
+    private final byte[] bytes;
+
+    private final long count;
+
+    public AvroBlock(Schema schema, byte[] bytes, long count) {
+        this.schema = schema;
+        this.bytes = bytes;
+        this.count = count;
+    }
+
+    public Schema getSchema() {
+        return schema;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,71 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+
+/**
+ * Transcodes all datums of an {@link AvroBlock} into newline terminated json rows. Like the
+ * transcoder it keeps scratch state, so every thread needs its own instance.
+ */
+class AvroBlockConverter {
+
+    private final int rowMaxSize;
+
+    private final ResolvingTranscoder transcoder;
+
+    private final ConversionStats stats = new ConversionStats();
+
+    private BinaryDecoder decoder;
+
+    AvroBlockConverter(int rowMaxSize) {
+        this(rowMaxSize, null, null, MapEncoding.RECORDS);
+    }
+
+    /**
+     * Converter of blocks to rows of the target schema reduced to the given columns, see
+     * {@link ResolvingTranscoder}.
+     */
+    AvroBlockConverter(int rowMaxSize, Schema target, Set<String> columns, MapEncoding maps) {
+        this.rowMaxSize = rowMaxSize;
+        this.transcoder = new ResolvingTranscoder(target, columns, maps);
+    }
+
+    ConversionStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Appends the rows of the block to the output and returns the number of rows skipped for
+     * being larger than the row size limit.
+     */
+    int convert(AvroBlock block, JsonOutput output) throws IOException {
+        return convert(block.getSchema(), ByteBuffer.wrap(block.getBytes()), block.getCount(), output);
+    }
+
+    int convert(Schema blockSchema, ByteBuffer block, long count, JsonOutput output) throws IOException {
+        decoder = DecoderFactory.get().binaryDecoder(
+            block.array(), block.arrayOffset() + block.position(), block.remaining(), decoder);
+        int skipped = 0;
+        for (long i = count; i > 0; i--) {
+            int rowStart = output.getLength();
+            // the datum has to be decoded to its end anyway, but nothing past the limit is encoded
+            output.setLimit((int) Math.min((long) rowStart + rowMaxSize, Integer.MAX_VALUE));
+            transcoder.transcode(blockSchema, decoder, output);
+            boolean overflow = output.isOverflow();
+            output.setLimit(Integer.MAX_VALUE);
+            if (overflow) {
+                output.truncate(rowStart);
+                stats.skip();
+                skipped++;
+            } else {
+                stats.row(output.getLength() - rowStart);
+                output.write('\n');
+            }
+        }
+        return skipped;
+    }
+}
@@ -0,0 +1,36 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.SeekableInput;
+import org.apache.avro.generic.GenericDatumReader;
+
+/**
+ * Reads the decompressed data blocks of an Avro container file between two split offsets,
+ * leaving the decoding of the datums in a block to the caller.
+ */
+class AvroBlockReader extends DataFileReader<Void> {
+
+    private final long end;
+
+    AvroBlockReader(SeekableInput input, long start, long end) throws IOException {
+        super(input, new GenericDatumReader<>());
+        this.end = end;
+        sync(start);
+    }
+
+    /**
+     * Returns the next block, or null past the end of the split. {@link #getBlockCount()} holds the
+     * number of datums in it. The returned buffer is reused by the following call, so it has to be
+     * consumed or copied before that.
+     */
+    ByteBuffer nextBlockInSplit() throws IOException {
+        if (!hasNext() || pastSync(end)) {
+            return null;
+        }
+        ByteBuffer block = nextBlock();
+        blockFinished();
+        return block;
+    }
+}
@@ -0,0 +1,70 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.apache.avro.mapred.FsInput;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Reads an Avro container file split as whole data blocks. Every block is copied, so it can be
+ * handed over to another thread.
+ */
+public class AvroBlockRecordReader extends RecordReader<AvroBlock, NullWritable> {
+
+    private AvroBlockReader reader;
+
+    private AvroBlock block;
+
+    private long start;
+
+    private long end;
+
+    @Override
+    public void initialize(InputSplit inputSplit, TaskAttemptContext context) throws IOException {
+        FileSplit split = (FileSplit) inputSplit;
+        start = split.getStart();
+        end = start + split.getLength();
+        reader = new AvroBlockReader(new FsInput(split.getPath(), context.getConfiguration()), start, end);
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException {
+        ByteBuffer buffer = reader.nextBlockInSplit();
+        if (buffer == null) {
+            return false;
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        System.arraycopy(buffer.array(), buffer.arrayOffset() + buffer.position(), bytes, 0, bytes.length);
+        block = new AvroBlock(reader.getSchema(), bytes, reader.getBlockCount());
+        return true;
+    }
+
+    @Override
+    public AvroBlock getCurrentKey() {
+        return block;
+    }
+
+    @Override
+    public NullWritable getCurrentValue() {
+        return NullWritable.get();
+    }
+
+    @Override
+    public float getProgress() throws IOException {
+        if (end == start) {
+            return 0.0f;
+        }
+        return Math.min(1.0f, (reader.previousSync() - start) / (float) (end - start));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+    }
+}
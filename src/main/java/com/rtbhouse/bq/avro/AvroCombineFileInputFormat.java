@@ -0,0 +1,86 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * Combine input format planning its splits with {@link AvroSplitPlanner}: large Avro files are
+ * cut at sync markers and small ones packed together, local to the nodes holding their blocks.
+ * With {@link #SPLITS_PER_NODE} set the split size is lowered from the max split size to spread
+ * the input over that many splits per node.
+ */
+public abstract class AvroCombineFileInputFormat<K, V> extends CombineFileInputFormat<K, V> {
+
+    public static final String SPLITS_PER_NODE = "json.splits.per.node";
+
+    /**
+     * Offsets to start reading some of the input files at, as comma separated, escaped start:path
+     * entries.
+     */
+    static final String INPUT_STARTS = "json.input.starts";
+
+    // splits below this size are not worth a map task of their own
+    static final long MIN_SPLIT_SIZE = 16 * 1024 * 1024L;
+
+    @Override
+    public List<InputSplit> getSplits(JobContext job) throws IOException {
+        Configuration conf = job.getConfiguration();
+        long maxSize = conf.getLong(FileInputFormat.SPLIT_MAXSIZE, 0);
+        if (maxSize <= 0) {
+            return super.getSplits(job);
+        }
+
+        Map<String, Long> starts = new HashMap<>();
+        if (conf.get(INPUT_STARTS) != null) {
+            for (String entry : StringUtils.split(conf.get(INPUT_STARTS))) {
+                String start = StringUtils.unEscapeString(entry);
+                starts.put(start.substring(start.indexOf(':') + 1), Long.parseLong(start.substring(0, start.indexOf(':'))));
+            }
+        }
+
+        List<FileStatus> files = new ArrayList<>();
+        List<Long> fileStarts = new ArrayList<>();
+        List<BlockLocation[]> blocks = new ArrayList<>();
+        Set<String> hosts = new HashSet<>();
+        long totalSize = 0;
+        for (FileStatus file : listStatus(job)) {
+            if (file.getLen() == 0) {
+                continue;
+            }
+            long start = starts.getOrDefault(file.getPath().toString(), 0L);
+            FileSystem fs = file.getPath().getFileSystem(conf);
+            BlockLocation[] fileBlocks = fs.getFileBlockLocations(file, start, file.getLen() - start);
+            for (BlockLocation block : fileBlocks) {
+                for (String host : block.getHosts()) {
+                    hosts.add(host);
+                }
+            }
+            files.add(file);
+            fileStarts.add(start);
+            blocks.add(fileBlocks);
+            totalSize += file.getLen() - start;
+        }
+
+        long targetSize = AvroSplitPlanner.targetSize(totalSize, hosts.size(), conf.getInt(SPLITS_PER_NODE, 0), maxSize, MIN_SPLIT_SIZE);
+        List<AvroSplitPlanner.Chunk> chunks = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            FileStatus file = files.get(i);
+            chunks.addAll(AvroSplitPlanner.chunks(file.getPath(), fileStarts.get(i), file.getLen(), blocks.get(i), targetSize));
+        }
+        return AvroSplitPlanner.plan(chunks, targetSize);
+    }
+}
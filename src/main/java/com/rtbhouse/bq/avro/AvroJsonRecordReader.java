@@ -0,0 +1,110 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.mapred.FsInput;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Reads an Avro container file split block by block and transcodes every datum into a json
+ * {@link Text} key of the job's reader schema, see {@link ResolvingTranscoder}.
+ */
+public class AvroJsonRecordReader extends RecordReader<Text, NullWritable> {
+
+    private final Text text = new Text();
+
+    private final JsonOutput output = new JsonOutput();
+
+    private AvroBlockReader reader;
+
+    private ResolvingTranscoder transcoder;
+
+    private BinaryDecoder decoder;
+
+    private long remaining;
+
+    private long start;
+
+    private long end;
+
+    private int rowMaxSize;
+
+    private final ConversionStats stats = new ConversionStats();
+
+    private TaskAttemptContext context;
+
+    @Override
+    public void initialize(InputSplit inputSplit, TaskAttemptContext context) throws IOException {
+        this.context = context;
+        rowMaxSize = context.getConfiguration().getInt(AvroToJson.ROWMAXSIZE, AvroToJson.MAXSIZE);
+        output.setLimit(rowMaxSize);
+        FileSplit split = (FileSplit) inputSplit;
+        start = split.getStart();
+        end = start + split.getLength();
+        reader = new AvroBlockReader(new FsInput(split.getPath(), context.getConfiguration()), start, end);
+        transcoder = new ResolvingTranscoder(SchemaMetadata.load(context.getConfiguration()),
+            Projection.parseColumns(context.getConfiguration().get(AvroToJson.COLUMNS)),
+            MapEncoding.parse(context.getConfiguration().get(AvroToJson.MAPS)));
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException {
+        do {
+            while (remaining == 0) {
+                ByteBuffer block = reader.nextBlockInSplit();
+                if (block == null) {
+                    return false;
+                }
+                remaining = reader.getBlockCount();
+                decoder = DecoderFactory.get().binaryDecoder(
+                    block.array(), block.arrayOffset() + block.position(), block.remaining(), decoder);
+            }
+            remaining--;
+            output.reset();
+            transcoder.transcode(reader.getSchema(), decoder, output);
+            if (output.isOverflow()) {
+                stats.skip();
+            }
+        } while (output.isOverflow());
+        text.set(output.getBytes(), 0, output.getLength());
+        return true;
+    }
+
+    @Override
+    public Text getCurrentKey() {
+        return text;
+    }
+
+    @Override
+    public NullWritable getCurrentValue() {
+        return NullWritable.get();
+    }
+
+    @Override
+    public float getProgress() throws IOException {
+        if (end == start) {
+            return 0.0f;
+        }
+        return Math.min(1.0f, (reader.previousSync() - start) / (float) (end - start));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (context != null) {
+            if (stats.getSkipped() > 0) {
+                System.out.println(String.format("Skipped records over %s bytes: %s", rowMaxSize, stats.getSkipped()));
+            }
+            stats.publish(context);
+        }
+        if (reader != null) {
+            reader.close();
+        }
+    }
+}
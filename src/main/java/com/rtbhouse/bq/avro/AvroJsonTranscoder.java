@@ -0,0 +1,354 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.util.Utf8;
+
+/**
+ * Transcodes binary encoded Avro datums of a given writer schema straight to json, producing the
+ * same output as {@link JsonBuilder} without materializing a record. Keeps scratch buffers, so an
+ * instance must not be shared between threads.
+ */
+public class AvroJsonTranscoder {
+
+    private static final byte[] SEPARATOR = ", ".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] MAP_KEY = "{\"key\": ".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] MAP_VALUE = ", \"value\": ".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] KEY_SEPARATOR = ": ".getBytes(StandardCharsets.US_ASCII);
+
+    private final Utf8 utf8 = new Utf8();
+
+    private ByteBuffer bytes;
+
+    private final Transcoder root;
+
+    public AvroJsonTranscoder(Schema schema) {
+        this(schema, null);
+    }
+
+    /**
+     * Transcoder of a record schema writing only the given top-level columns, the others are
+     * skipped in the binary without being decoded. Null columns write all of them.
+     */
+    public AvroJsonTranscoder(Schema schema, Set<String> columns) {
+        this(schema, columns, MapEncoding.RECORDS);
+    }
+
+    AvroJsonTranscoder(Schema schema, Set<String> columns, MapEncoding maps) {
+        if (columns == null) {
+            root = compile(schema, new IdentityHashMap<>(), maps);
+        } else {
+            // not registered, a nested occurrence of a recursive root record keeps all its fields
+            RecordTranscoder record = new RecordTranscoder(schema.getFields().size());
+            record.compileFields(schema.getFields(), new IdentityHashMap<>(), columns, maps);
+            root = record;
+        }
+    }
+
+    public void transcode(Decoder in, JsonOutput out) throws IOException {
+        root.transcode(in, out);
+    }
+
+    private interface Transcoder {
+
+        void transcode(Decoder in, JsonOutput out) throws IOException;
+    }
+
+    private Transcoder compile(Schema schema, Map<Schema, RecordTranscoder> records, MapEncoding maps) {
+        LogicalType logicalType = LogicalType.of(schema);
+        if (logicalType != null) {
+            return compileLogical(schema, logicalType);
+        }
+        switch (schema.getType()) {
+            case RECORD:
+                RecordTranscoder record = records.get(schema);
+                if (record == null) {
+                    // registered before its fields are compiled, so recursive schemas resolve to it
+                    record = new RecordTranscoder(schema.getFields().size());
+                    records.put(schema, record);
+                    record.compileFields(schema.getFields(), records, null, maps);
+                }
+                return record;
+            case ARRAY:
+                return new ArrayTranscoder(compile(schema.getElementType(), records, maps));
+            case MAP:
+                return compileMap(schema, records, maps);
+            case UNION:
+                return new UnionTranscoder(compileBranches(schema, records, maps));
+            case STRING:
+                return (in, out) -> {
+                    in.readString(utf8);
+                    out.writeString(utf8.getBytes(), 0, utf8.getByteLength());
+                };
+            case ENUM:
+                return new EnumTranscoder(schema.getEnumSymbols());
+            case INT:
+                return (in, out) -> out.writeLong(in.readInt());
+            case LONG:
+                return (in, out) -> out.writeLong(in.readLong());
+            case DOUBLE:
+                return (in, out) -> out.writeDouble(in.readDouble());
+            case FLOAT:
+                return (in, out) -> out.writeFloat(in.readFloat());
+            case BOOLEAN:
+                return (in, out) -> out.writeBoolean(in.readBoolean());
+            case BYTES:
+                return (in, out) -> {
+                    bytes = in.readBytes(bytes);
+                    out.writeBytes(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+                };
+            case FIXED:
+                byte[] fixed = new byte[schema.getFixedSize()];
+                return (in, out) -> {
+                    in.readFixed(fixed);
+                    out.writeBytes(fixed, 0, fixed.length);
+                };
+            default:
+                return (in, out) -> {
+                    in.readNull();
+                    out.writeNull();
+                };
+        }
+    }
+
+    private Transcoder compileLogical(Schema schema, LogicalType logicalType) {
+        int scale = LogicalType.scale(schema);
+        switch (logicalType) {
+            case DATE:
+                return (in, out) -> out.writeDate(in.readInt());
+            case TIMESTAMP_MILLIS:
+                return (in, out) -> out.writeTimestamp(in.readLong(), 3);
+            case TIMESTAMP_MICROS:
+                return (in, out) -> out.writeTimestamp(in.readLong(), 6);
+            default:
+                if (schema.getType().equals(Schema.Type.FIXED)) {
+                    byte[] fixed = new byte[schema.getFixedSize()];
+                    return (in, out) -> {
+                        in.readFixed(fixed);
+                        out.writeDecimal(fixed, 0, fixed.length, scale);
+                    };
+                }
+                return (in, out) -> {
+                    bytes = in.readBytes(bytes);
+                    out.writeDecimal(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), scale);
+                };
+        }
+    }
+
+    private Transcoder compileMap(Schema schema, Map<Schema, RecordTranscoder> records, MapEncoding maps) {
+        switch (maps) {
+            case JSON:
+                // records in the string are compiled anew, their maps are plain objects
+                Transcoder object = new MapTranscoder(compile(schema.getValueType(), new IdentityHashMap<>(), MapEncoding.OBJECT), true);
+                return (in, out) -> {
+                    JsonOutput json = out.scratch();
+                    object.transcode(in, json);
+                    out.writeString(json.getBytes(), 0, json.getLength());
+                };
+            case OBJECT:
+                return new MapTranscoder(compile(schema.getValueType(), records, maps), true);
+            default:
+                return new MapTranscoder(compile(schema.getValueType(), records, maps), false);
+        }
+    }
+
+    private Transcoder[] compileBranches(Schema union, Map<Schema, RecordTranscoder> records, MapEncoding maps) {
+        List<Schema> types = union.getTypes();
+        boolean branchRecord = SchemaConverter.isBranchRecord(union);
+        Transcoder[] branches = new Transcoder[types.size()];
+        for (int i = 0; i < branches.length; i++) {
+            if (!types.get(i).getType().equals(Schema.Type.NULL)) {
+                Transcoder branch = compile(types.get(i), records, maps);
+                if (branchRecord) {
+                    byte[] prefix = ("{\"" + SchemaConverter.branchName(union, types.get(i)) + "\": ").getBytes(StandardCharsets.US_ASCII);
+                    branches[i] = (in, out) -> {
+                        out.write(prefix);
+                        branch.transcode(in, out);
+                        out.write('}');
+                    };
+                } else {
+                    branches[i] = branch;
+                }
+            }
+        }
+        return branches;
+    }
+
+    private final class RecordTranscoder implements Transcoder {
+
+        private final byte[][] prefixes;
+
+        private final Transcoder[] fields;
+
+        private final Transcoder[][] unions;
+
+        private final Transcoder[] skips;
+
+        private RecordTranscoder(int size) {
+            prefixes = new byte[size][];
+            fields = new Transcoder[size];
+            unions = new Transcoder[size][];
+            skips = new Transcoder[size];
+        }
+
+        private void compileFields(List<Schema.Field> schemaFields, Map<Schema, RecordTranscoder> records, Set<String> columns,
+            MapEncoding maps) {
+            for (int i = 0; i < schemaFields.size(); i++) {
+                Schema.Field field = schemaFields.get(i);
+                if (columns != null && !columns.contains(field.name())) {
+                    Schema skipped = field.schema();
+                    skips[i] = (in, out) -> GenericDatumReader.skip(skipped, in);
+                    continue;
+                }
+                JsonOutput prefix = new JsonOutput(field.name().length() + 4);
+                prefix.writeString(field.name());
+                prefix.writeAscii(": ");
+                prefixes[i] = Arrays.copyOf(prefix.getBytes(), prefix.getLength());
+                // union fields are inlined, so a null branch can drop the field like a null record value
+                if (field.schema().getType().equals(Schema.Type.UNION)) {
+                    unions[i] = compileBranches(field.schema(), records, maps);
+                } else if (!field.schema().getType().equals(Schema.Type.NULL)) {
+                    fields[i] = compile(field.schema(), records, maps);
+                }
+            }
+        }
+
+        @Override
+        public void transcode(Decoder in, JsonOutput out) throws IOException {
+            out.write('{');
+            int count = 0;
+            for (int i = 0; i < prefixes.length; i++) {
+                Transcoder field = fields[i];
+                if (skips[i] != null) {
+                    skips[i].transcode(in, out);
+                    continue;
+                } else if (unions[i] != null) {
+                    field = unions[i][in.readIndex()];
+                }
+                if (field == null) {
+                    continue;
+                } else if (count++ > 0) {
+                    out.write(SEPARATOR);
+                }
+                out.write(prefixes[i]);
+                field.transcode(in, out);
+            }
+            out.write('}');
+        }
+    }
+
+    private static final class ArrayTranscoder implements Transcoder {
+
+        private final Transcoder element;
+
+        private ArrayTranscoder(Transcoder element) {
+            this.element = element;
+        }
+
+        @Override
+        public void transcode(Decoder in, JsonOutput out) throws IOException {
+            out.write('[');
+            int count = 0;
+            for (long items = in.readArrayStart(); items > 0; items = in.arrayNext()) {
+                for (long i = 0; i < items; i++) {
+                    if (count++ > 0) {
+                        out.write(SEPARATOR);
+                    }
+                    element.transcode(in, out);
+                }
+            }
+            out.write(']');
+        }
+    }
+
+    private final class MapTranscoder implements Transcoder {
+
+        private final Transcoder value;
+
+        private final boolean object;
+
+        /**
+         * Transcoder of maps as json objects, or as arrays of key and value records.
+         */
+        private MapTranscoder(Transcoder value, boolean object) {
+            this.value = value;
+            this.object = object;
+        }
+
+        @Override
+        public void transcode(Decoder in, JsonOutput out) throws IOException {
+            out.write(object ? '{' : '[');
+            int count = 0;
+            for (long entries = in.readMapStart(); entries > 0; entries = in.mapNext()) {
+                for (long i = 0; i < entries; i++) {
+                    if (count++ > 0) {
+                        out.write(SEPARATOR);
+                    }
+                    in.readString(utf8);
+                    if (object) {
+                        out.writeString(utf8.getBytes(), 0, utf8.getByteLength());
+                        out.write(KEY_SEPARATOR);
+                        value.transcode(in, out);
+                    } else {
+                        out.write(MAP_KEY);
+                        out.writeString(utf8.getBytes(), 0, utf8.getByteLength());
+                        out.write(MAP_VALUE);
+                        value.transcode(in, out);
+                        out.write('}');
+                    }
+                }
+            }
+            out.write(object ? '}' : ']');
+        }
+    }
+
+    private static final class UnionTranscoder implements Transcoder {
+
+        private final Transcoder[] branches;
+
+        private UnionTranscoder(Transcoder[] branches) {
+            this.branches = branches;
+        }
+
+        @Override
+        public void transcode(Decoder in, JsonOutput out) throws IOException {
+            Transcoder branch = branches[in.readIndex()];
+            if (branch == null) {
+                out.writeNull();
+            } else {
+                branch.transcode(in, out);
+            }
+        }
+    }
+
+    private static final class EnumTranscoder implements Transcoder {
+
+        private final byte[][] symbols;
+
+        private EnumTranscoder(List<String> enumSymbols) {
+            symbols = new byte[enumSymbols.size()][];
+            for (int i = 0; i < symbols.length; i++) {
+                JsonOutput symbol = new JsonOutput(enumSymbols.get(i).length() + 2);
+                symbol.writeString(enumSymbols.get(i));
+                symbols[i] = Arrays.copyOf(symbol.getBytes(), symbol.getLength());
+            }
+        }
+
+        @Override
+        public void transcode(Decoder in, JsonOutput out) throws IOException {
+            out.write(symbols[in.readEnum()]);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+
+/**
+ * Plans combined splits of Avro container files. Files larger than the target split size are cut
+ * into chunks, which is safe at any offset since readers start at the first sync marker past it,
+ * and chunks are bin-packed by size into splits local to a node holding a replica of their data.
+ * Of the replicas, chunks go to the node with the least data placed so far, so the work spreads
+ * evenly over the cluster even when the first replicas all sit on one node.
+ */
+final class AvroSplitPlanner {
+
+    private static final String ANY_HOST = "";
+
+    private static final String ANY_RACK = "";
+
+    // a bin this full is not worth keeping open for more chunks
+    private static final double FULL = 0.9;
+
+    private static final int MAX_LOCATIONS = 3;
+
+    private AvroSplitPlanner() {
+    }
+
+    static final class Chunk {
+
+        private final Path path;
+
+        private final long offset;
+
+        private final long length;
+
+        private final String[] hosts;
+
+        private final String[] racks;
+
+        /**
+         * Chunk of the file with replicas on the hosts in the racks at the same index.
+         */
+        Chunk(Path path, long offset, long length, String[] hosts, String[] racks) {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+            this.hosts = hosts;
+            this.racks = racks;
+        }
+    }
+
+    /**
+     * Cuts the range of a file from start to end into chunks of at most chunkSize bytes, each
+     * attributed to the replica hosts and racks of the block it overlaps most.
+     */
+    static List<Chunk> chunks(Path path, long start, long end, BlockLocation[] blocks, long chunkSize) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        long length = end - start;
+        int count = (int) ((length + chunkSize - 1) / chunkSize);
+        for (int i = 0; i < count; i++) {
+            long offset = start + length * i / count;
+            long chunkEnd = start + length * (i + 1) / count;
+            BlockLocation block = largestOverlap(blocks, offset, chunkEnd);
+            String[] hosts = {ANY_HOST};
+            String[] racks = {ANY_RACK};
+            if (block != null && block.getHosts().length > 0) {
+                hosts = block.getHosts();
+                racks = new String[hosts.length];
+                String[] topology = block.getTopologyPaths();
+                for (int j = 0; j < hosts.length; j++) {
+                    racks[j] = ANY_RACK;
+                    // topology paths are /rack/host:port, in the order of the hosts
+                    if (j < topology.length && topology[j].lastIndexOf('/') > 0) {
+                        racks[j] = topology[j].substring(0, topology[j].lastIndexOf('/'));
+                    }
+                }
+            }
+            chunks.add(new Chunk(path, offset, chunkEnd - offset, hosts, racks));
+        }
+        return chunks;
+    }
+
+    private static BlockLocation largestOverlap(BlockLocation[] blocks, long start, long end) {
+        BlockLocation largest = null;
+        long largestOverlap = 0;
+        for (BlockLocation block : blocks) {
+            long overlap = Math.min(end, block.getOffset() + block.getLength()) - Math.max(start, block.getOffset());
+            if (overlap > largestOverlap) {
+                largest = block;
+                largestOverlap = overlap;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * The split size aiming at splitsPerNode splits on each of the nodes, never above maxSize and,
+     * unless maxSize is smaller, never below minSize.
+     */
+    static long targetSize(long totalSize, int nodes, int splitsPerNode, long maxSize, long minSize) {
+        if (splitsPerNode <= 0 || nodes <= 0) {
+            return maxSize;
+        }
+        long target = (totalSize + (long) nodes * splitsPerNode - 1) / ((long) nodes * splitsPerNode);
+        return Math.min(maxSize, Math.max(target, Math.min(minSize, maxSize)));
+    }
+
+    static List<InputSplit> plan(List<Chunk> chunks, long targetSize) {
+        List<Chunk> sorted = new ArrayList<>(chunks);
+        sorted.sort(Comparator.comparingLong((Chunk chunk) -> chunk.length).reversed());
+        Map<String, Long> load = new HashMap<>();
+        Map<String, Bin> open = new LinkedHashMap<>();
+        List<Bin> done = new ArrayList<>();
+        List<Bin> partial = new ArrayList<>();
+        for (Chunk chunk : sorted) {
+            int replica = leastLoaded(chunk.hosts, load);
+            String host = chunk.hosts[replica];
+            Bin bin = open.get(host);
+            if (bin != null && bin.size + chunk.length > targetSize) {
+                // the largest chunks come first, the bin would not get much fuller anyway
+                partial.add(open.remove(host));
+                bin = null;
+            }
+            if (bin == null) {
+                bin = new Bin(host, chunk.racks[replica]);
+                open.put(host, bin);
+            }
+            bin.add(chunk);
+            load.merge(host, chunk.length, Long::sum);
+            if (bin.size >= targetSize * FULL) {
+                done.add(open.remove(host));
+            }
+        }
+        partial.addAll(open.values());
+
+        // bins at least half full stay node local, smaller ones are packed rack by rack and
+        // then regardless of locality
+        Map<String, List<Bin>> racks = new LinkedHashMap<>();
+        for (Bin bin : partial) {
+            if (bin.size >= targetSize / 2) {
+                done.add(bin);
+            } else {
+                racks.computeIfAbsent(bin.rack, rack -> new ArrayList<>()).add(bin);
+            }
+        }
+        List<Bin> leftovers = new ArrayList<>();
+        for (List<Bin> rackBins : racks.values()) {
+            for (Bin bin : firstFitDecreasing(rackBins, targetSize, load)) {
+                (bin.size >= targetSize / 2 ? done : leftovers).add(bin);
+            }
+        }
+        done.addAll(firstFitDecreasing(leftovers, targetSize, load));
+
+        List<InputSplit> splits = new ArrayList<>(done.size());
+        for (Bin bin : done) {
+            splits.add(bin.toSplit());
+        }
+        return splits;
+    }
+
+    /**
+     * The index of the host with the least data placed on it, the first of equally loaded ones.
+     */
+    private static int leastLoaded(String[] hosts, Map<String, Long> load) {
+        int least = 0;
+        for (int i = 1; i < hosts.length; i++) {
+            if (load.getOrDefault(hosts[i], 0L) < load.getOrDefault(hosts[least], 0L)) {
+                least = i;
+            }
+        }
+        return least;
+    }
+
+    private static List<Bin> firstFitDecreasing(List<Bin> bins, long targetSize, Map<String, Long> load) {
+        List<Bin> sorted = new ArrayList<>(bins);
+        sorted.sort(Comparator.comparingLong((Bin bin) -> bin.size).reversed());
+        List<Bin> packed = new ArrayList<>();
+        for (Bin bin : sorted) {
+            Bin target = null;
+            for (Bin candidate : packed) {
+                if (candidate.size + bin.size <= targetSize
+                    && (target == null || load.getOrDefault(candidate.host, 0L) < load.getOrDefault(target.host, 0L))) {
+                    target = candidate;
+                }
+            }
+            if (target == null) {
+                packed.add(bin);
+            } else {
+                // the merged chunks are now read on the host of the bin they joined
+                load.merge(bin.host, -bin.size, Long::sum);
+                load.merge(target.host, bin.size, Long::sum);
+                target.addAll(bin);
+            }
+        }
+        return packed;
+    }
+
+    private static final class Bin {
+
+        private final String host;
+
+        private final String rack;
+
+        private final List<Chunk> chunks = new ArrayList<>();
+
+        private long size;
+
+        private Bin(String host, String rack) {
+            this.host = host;
+            this.rack = rack;
+        }
+
+        private void add(Chunk chunk) {
+            chunks.add(chunk);
+            size += chunk.length;
+        }
+
+        private void addAll(Bin bin) {
+            for (Chunk chunk : bin.chunks) {
+                add(chunk);
+            }
+        }
+
+        private CombineFileSplit toSplit() {
+            Path[] paths = new Path[chunks.size()];
+            long[] offsets = new long[chunks.size()];
+            long[] lengths = new long[chunks.size()];
+            Map<String, Long> hostBytes = new HashMap<>();
+            for (int i = 0; i < paths.length; i++) {
+                Chunk chunk = chunks.get(i);
+                paths[i] = chunk.path;
+                offsets[i] = chunk.offset;
+                lengths[i] = chunk.length;
+                for (String replica : chunk.hosts) {
+                    if (!replica.equals(ANY_HOST)) {
+                        hostBytes.merge(replica, chunk.length, Long::sum);
+                    }
+                }
+            }
+            // the host the bin was planned for leads the hosts holding as much of it
+            String[] hosts = hostBytes.keySet().toArray(new String[hostBytes.size()]);
+            Arrays.sort(hosts, Comparator.comparingLong((String replica) -> hostBytes.get(replica)).reversed()
+                .thenComparing(replica -> !replica.equals(host)));
+            return new CombineFileSplit(paths, offsets, lengths, Arrays.copyOf(hosts, Math.min(hosts.length, MAX_LOCATIONS)));
+        }
+    }
+}
@@ -4,11 +4,22 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
 
 import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileConstants;
 import org.apache.avro.generic.GenericRecord;
 import org.apache.avro.mapred.AvroKey;
+import org.apache.avro.mapred.AvroOutputFormat;
 import org.apache.avro.mapreduce.AvroJob;
+import org.apache.avro.mapreduce.AvroKeyOutputFormat;
+import org.apache.avro.mapreduce.AvroMultipleOutputs;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.HelpFormatter;
@@ -18,15 +29,20 @@ import org.apache.commons.cli.PosixParser;
 import org.apache.commons.io.Charsets;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobCounter;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.TaskReport;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
@@ -40,22 +56,63 @@ public class AvroToJson extends Configured implements Tool {
 
     public static final String SCHEMA_BQSC_FILE = "schema.bqsc";
 
-    public static final int MAXSIZE = 2 * 1024 * 1024;
+    public static final String OVERSIZE = "json.oversize.output";
+
+    public static final String COLUMNS = "json.columns";
+
+    public static final String WHERE = "json.where";
 
-    private static Schema schema = null;
+    public static final String MAPS = "json.maps";
+
+    public static final String PARTITION_BY = "json.partition.by";
+
+    public static final String OVERSIZE_OUTPUT = "oversize";
+
+    public static final int MAXSIZE = 2 * 1024 * 1024;
 
     public static class GenericRecordMapper extends Mapper<AvroKey<GenericRecord>, NullWritable, Text, NullWritable> {
 
         private final Text text = new Text();
 
-        private int skipped = 0;
+        private final JsonOutput output = new JsonOutput();
 
         private int rowMaxSize;
 
+        private int fieldSample;
+
+        private JsonBuilder jsonBuilder;
+
+        private ConversionStats stats;
+
+        private RowFilter filter;
+
+        private AvroMultipleOutputs oversize;
+
+        private PartitionKey partitionKey;
+
+        private NdjsonOutputFormat.PartitionWriters partitions;
+
         @Override
-        public void setup(Context context) throws IOException {
+        public void setup(Context context) throws IOException, InterruptedException {
             Configuration configuration = context.getConfiguration();
             rowMaxSize = configuration.getInt(ROWMAXSIZE, MAXSIZE);
+            fieldSample = configuration.getInt(ConversionStats.FIELD_SAMPLE, 0);
+            Schema schema = SchemaMetadata.load(configuration);
+            jsonBuilder = new JsonBuilder(schema, Projection.parseColumns(configuration.get(COLUMNS)),
+                MapEncoding.parse(configuration.get(MAPS)));
+            if (configuration.get(WHERE) != null) {
+                filter = RowFilter.parse(configuration.get(WHERE), schema);
+            }
+            stats = new ConversionStats(fieldSample > 0 ? schema : null);
+            stats.input(context.getInputSplit().getLength());
+            output.setLimit(rowMaxSize);
+            if (configuration.getBoolean(OVERSIZE, false)) {
+                oversize = new AvroMultipleOutputs(context);
+            }
+            if (configuration.get(PARTITION_BY) != null) {
+                partitionKey = new PartitionKey(schema, configuration.get(PARTITION_BY));
+                partitions = new NdjsonOutputFormat().partitionWriters(context);
+            }
         }
 
         @Override
@@ -63,16 +120,127 @@ public class AvroToJson extends Configured implements Tool {
             throws IOException, InterruptedException {
 
             GenericRecord avro = key.datum();
+            if (filter != null && !filter.accept(avro)) {
+                stats.filter();
+                return;
+            }
+
+            output.reset();
+            if (fieldSample > 0 && stats.getRecordsIn() % fieldSample == 0) {
+                jsonBuilder.build(avro, output, stats.fieldBytes());
+            } else {
+                jsonBuilder.build(avro, output);
+            }
+            if (output.isOverflow()) {
+                stats.skip();
+                if (oversize != null) {
+                    oversize.write(OVERSIZE_OUTPUT, key);
+                }
+                return;
+            }
+
+            stats.row(output.getLength());
+            text.set(output.getBytes(), 0, output.getLength());
+            if (partitions != null) {
+                partitions.write(partitionKey.of(avro), text);
+            } else {
+                context.write(text, NullWritable.get());
+            }
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            if (stats.getSkipped() > 0) {
+                System.out.println(String.format("Skipped records over %s bytes: %s", rowMaxSize, stats.getSkipped()));
+            }
+            stats.publish(context);
+            if (oversize != null) {
+                oversize.close();
+            }
+            if (partitions != null) {
+                partitions.close();
+            }
+        }
+
+    }
+
+    public static class AvroRecordMapper extends Mapper<AvroKey<GenericRecord>, NullWritable, AvroKey<GenericRecord>, NullWritable> {
+
+        private final AvroKey<GenericRecord> avro = new AvroKey<>();
+
+        private final ConversionStats stats = new ConversionStats();
+
+        private BigQueryAvro converter;
+
+        private RowFilter filter;
+
+        @Override
+        public void setup(Context context) throws IOException, InterruptedException {
+            Configuration configuration = context.getConfiguration();
+            Schema schema = SchemaMetadata.load(configuration);
+            converter = new BigQueryAvro(schema, Projection.parseColumns(configuration.get(COLUMNS)));
+            if (configuration.get(WHERE) != null) {
+                filter = RowFilter.parse(configuration.get(WHERE), schema);
+            }
+            stats.input(context.getInputSplit().getLength());
+        }
 
-            String build = new JsonBuilder().build(avro);
-            int length = build.length();
+        @Override
+        public void map(AvroKey<GenericRecord> key, NullWritable value, Context context)
+            throws IOException, InterruptedException {
+
+            GenericRecord record = key.datum();
+            if (filter != null && !filter.accept(record)) {
+                stats.filter();
+                return;
+            }
+
+            stats.row();
+            avro.datum(converter.convert(record));
+            context.write(avro, NullWritable.get());
+        }
+
+        @Override
+        public void cleanup(Context context) {
+            stats.publish(context);
+        }
+
+    }
+
+    public static class JsonTextMapper extends Mapper<Text, NullWritable, Text, NullWritable> {
+
+        private final ConversionStats stats = new ConversionStats();
+
+        private int rowMaxSize;
+
+        @Override
+        public void setup(Context context) throws IOException, InterruptedException {
+            Configuration configuration = context.getConfiguration();
+            rowMaxSize = configuration.getInt(ROWMAXSIZE, MAXSIZE);
+            stats.input(context.getInputSplit().getLength());
+        }
+
+        @Override
+        public void map(Text json, NullWritable value, Context context)
+            throws IOException, InterruptedException {
+
+            int length = json.getLength();
             if (length > rowMaxSize) {
-                System.out.println(String.format("Skipping record too big: %s; total skipped: %s", length, ++skipped));
+                stats.skip();
                 return;
             }
 
-            text.set(build);
-            context.write(text, NullWritable.get());
+            stats.row(length);
+            context.write(json, NullWritable.get());
+        }
+
+        @Override
+        public void cleanup(Context context) {
+            // rows over the limit are mostly skipped by the record reader, which counts them itself
+            if (stats.getSkipped() > 0) {
+                System.out.println(String.format("Skipped records over %s bytes: %s", rowMaxSize, stats.getSkipped()));
+            }
+            stats.publish(context);
         }
 
     }
@@ -80,41 +248,212 @@ public class AvroToJson extends Configured implements Tool {
     @Override
     public int run(String[] args) throws Exception {
         Job job = createJob(args);
-        return (job.waitForCompletion(true) ? 0 : 1);
+        if (job == null) {
+            return 0;
+        }
+        boolean success = job.waitForCompletion(true);
+        if (success) {
+            if (!avro) {
+                printMaxRowSize(job);
+            }
+            if (manifest != null) {
+                manifest.commit();
+            }
+        }
+        return (success ? 0 : 1);
+    }
+
+    private static void printMaxRowSize(Job job) throws IOException, InterruptedException {
+        TaskReport[] reports = job.getTaskReports(TaskType.MAP);
+        if (reports.length > 0) {
+            // the job counter sums the maxima of all tasks, the real max is the largest of them
+            long maxRowSize = 0;
+            for (TaskReport report : reports) {
+                maxRowSize = Math.max(maxRowSize, report.getTaskCounters().findCounter(ConversionStats.Counters.MAX_ROW_SIZE).getValue());
+            }
+            System.out.println(String.format("Max json row size: %s", maxRowSize));
+        } else if (job.getCounters().findCounter(JobCounter.TOTAL_LAUNCHED_MAPS).getValue() == 1) {
+            // the sum of the maxima of a single task is its max
+            System.out.println(String.format("Max json row size: %s", job.getCounters().findCounter(ConversionStats.Counters.MAX_ROW_SIZE).getValue()));
+        } else {
+            // no task reports from the local runner, the row size histogram still bounds it
+            String largest = null;
+            for (Counter bucket : job.getCounters().getGroup(ConversionStats.ROW_SIZE_GROUP)) {
+                if (largest == null || ConversionStats.bucketOrder(bucket.getName()) > ConversionStats.bucketOrder(largest)) {
+                    largest = bucket.getName();
+                }
+            }
+            System.out.println(String.format("Largest json row size bucket: %s", largest));
+        }
     }
 
+    /**
+     * Creates the conversion job, or returns null for a sample run or an incremental run with
+     * nothing to convert.
+     */
     public Job createJob(String[] args) throws Exception {
         parseConfig(args);
         Path output = new Path(outputDirectory);
         Configuration conf = getConf();
         conf = conf == null ? new Configuration() : conf;
         conf.set(ROWMAXSIZE, String.valueOf(maxRowJsonSize));
+        conf.setInt(BlockParallelMapper.THREADS, threads);
+        conf.set(NdjsonOutputFormat.COMPRESSION, compression);
+        conf.setLong(NdjsonOutputFormat.PART_MAXSIZE, maxPartSizeMb * 1024 * 1024L);
+        conf.setLong(NdjsonOutputFormat.PART_MAX_COMPRESSED_SIZE, maxPartCompressedSizeMb * 1024 * 1024L);
+        conf.setInt(ConversionStats.FIELD_SAMPLE, fieldSample);
+        if (columns != null) {
+            conf.set(COLUMNS, columns);
+        }
+        if (where != null) {
+            conf.set(WHERE, where);
+        }
+        conf.set(MAPS, maps);
+        if (partitionBy != null) {
+            conf.set(PARTITION_BY, partitionBy);
+        }
         Job job = Job.getInstance(conf);
         job.setJobName(JOB_NAME);
         job.setJarByClass(AvroToJson.class);
-        job.setMapperClass(GenericRecordMapper.class);
         job.setNumReduceTasks(0);
 
-        schema = SchemaConverter.readSchema(avroschema, conf);
-        String convert = new SchemaConverter().convert(schema);
+        List<Path> inputs = new ArrayList<>();
+        for (String inputEntry : file.split(",")) {
+            inputs.add(new Path(inputEntry));
+        }
+        List<ProcessedManifest.Input> selected = null;
+        if (incremental) {
+            manifest = ProcessedManifest.read(conf, output);
+            selected = manifest.select(InputFiles.list(conf, inputs));
+            if (selected.isEmpty()) {
+                System.out.println("No new or changed input files to convert");
+                return null;
+            }
+            // the output directory holds the runs, each converting what is new since the last one
+            output = new Path(output, new SimpleDateFormat("yyyyMMddHHmmss").format(new Date()));
+            System.out.println(String.format("Converting %s new or changed input files into %s", selected.size(), output));
+        }
+
+        Schema schema = avroschema == null ? null : SchemaConverter.readSchema(avroschema, conf);
+        if (evolve) {
+            List<Schema> schemas = SchemaMerger.writerSchemas(conf, inputs);
+            System.out.println(String.format("Merging %s writer schemas of the input files", schemas.size()));
+            schemas.add(0, schema);
+            schema = SchemaMerger.merge(schemas);
+        }
+        Set<String> outputColumns = Projection.parseColumns(columns);
+        String convert = SchemaMetadata.of(schema, outputColumns, MapEncoding.parse(maps)).getBigQuerySchema();
         Files.write(convert, new File(SCHEMA_BQSC_FILE), Charsets.UTF_8);
-        AvroJob.setInputKeySchema(job, schema);
-        job.setInputFormatClass(CombineAvroKeyInputFormat.class);
-        CombineAvroKeyInputFormat.setMaxInputSplitSize(job, maxMapSizeMb * 1024 * 1024L);
+        if (partitionBy != null) {
+            // fail before the job on a column the mappers cannot partition by
+            new PartitionKey(schema, partitionBy);
+        }
+        // the reader schema also has the columns the filter and the partitions need, the json only the projected ones
+        Set<String> readColumns = outputColumns;
+        if (outputColumns != null && (where != null || partitionBy != null)) {
+            readColumns = new LinkedHashSet<>(outputColumns);
+            if (where != null) {
+                readColumns.addAll(RowFilter.parse(where, schema).getColumns());
+            }
+            if (partitionBy != null) {
+                readColumns.add(partitionBy);
+            }
+        }
+        Schema readerSchema = Projection.project(schema, readColumns);
+        if (sample > 0) {
+            estimate(conf, inputs, selected, readerSchema, outputColumns);
+            return null;
+        }
+        AvroJob.setInputKeySchema(job, readerSchema);
+        SchemaMetadata.store(job.getConfiguration(), readerSchema);
+        if (avro) {
+            job.setMapperClass(AvroRecordMapper.class);
+            job.setInputFormatClass(CombineAvroKeyInputFormat.class);
+        } else if (threads > 1) {
+            job.setMapperClass(BlockParallelMapper.class);
+            job.setInputFormatClass(CombineAvroBlockInputFormat.class);
+        } else if (transcode) {
+            job.setMapperClass(JsonTextMapper.class);
+            job.setInputFormatClass(CombineAvroJsonInputFormat.class);
+        } else {
+            job.setMapperClass(GenericRecordMapper.class);
+            job.setInputFormatClass(CombineAvroKeyInputFormat.class);
+            if (oversizeOutput) {
+                job.getConfiguration().setBoolean(OVERSIZE, true);
+                AvroMultipleOutputs.addNamedOutput(job, OVERSIZE_OUTPUT, AvroKeyOutputFormat.class, readerSchema);
+            }
+        }
+        CombineFileInputFormat.setMaxInputSplitSize(job, maxMapSizeMb * 1024 * 1024L);
+        job.getConfiguration().setInt(AvroCombineFileInputFormat.SPLITS_PER_NODE, splitsPerNode);
 
-        job.setOutputFormatClass(TextOutputFormat.class);
-        job.setMapOutputKeyClass(Text.class);
-        job.setMapOutputValueClass(NullWritable.class);
+        if (avro) {
+            setAvroOutput(job, new BigQueryAvro(readerSchema, outputColumns).getSchema());
+        } else {
+            job.setOutputFormatClass(NdjsonOutputFormat.class);
+            job.setMapOutputKeyClass(Text.class);
+            job.setMapOutputValueClass(NullWritable.class);
+        }
 
-        for (String inputEntry : file.split(",")) {
-            FileInputFormat.addInputPath(job, new Path(inputEntry));
+        if (selected == null) {
+            for (Path input : inputs) {
+                FileInputFormat.addInputPath(job, input);
+            }
+        } else {
+            List<String> starts = new ArrayList<>();
+            for (ProcessedManifest.Input input : selected) {
+                FileInputFormat.addInputPath(job, input.getPath());
+                if (input.getStart() > 0) {
+                    starts.add(StringUtils.escapeString(input.getStart() + ":" + input.getPath()));
+                }
+            }
+            if (!starts.isEmpty()) {
+                job.getConfiguration().set(AvroCombineFileInputFormat.INPUT_STARTS, String.join(",", starts));
+            }
         }
         FileOutputFormat.setOutputPath(job, output);
-        FileOutputFormat.setCompressOutput(job, true);
-        FileOutputFormat.setOutputCompressorClass(job, GzipCodec.class);
         return job;
     }
 
+    /**
+     * Converts the -d fraction of the input blocks on the client and prints the output projected
+     * from it, instead of running the job.
+     */
+    private void estimate(Configuration conf, List<Path> inputs, List<ProcessedManifest.Input> selected, Schema readerSchema,
+        Set<String> outputColumns) throws IOException {
+
+        OutputEstimator estimator = new OutputEstimator(conf, readerSchema, outputColumns, MapEncoding.parse(maps),
+            where == null ? null : RowFilter.parse(where, readerSchema), maxRowJsonSize, NdjsonOutputFormat.Compression.parse(compression), sample);
+        if (selected == null) {
+            for (FileStatus file : InputFiles.list(conf, inputs)) {
+                estimator.sample(file.getPath(), 0, file.getLen());
+            }
+        } else {
+            for (ProcessedManifest.Input input : selected) {
+                Path path = input.getPath();
+                estimator.sample(path, input.getStart(), path.getFileSystem(conf).getFileStatus(path).getLen());
+            }
+        }
+        estimator.print(maxPartCompressedSizeMb * 1024 * 1024L);
+    }
+
+    /**
+     * Writes Avro container files of the schema, deflated at the level of the -c compression
+     * unless that is none.
+     */
+    private void setAvroOutput(Job job, Schema schema) {
+        job.setOutputFormatClass(AvroKeyOutputFormat.class);
+        AvroJob.setOutputKeySchema(job, schema);
+        job.setOutputValueClass(NullWritable.class);
+        NdjsonOutputFormat.Compression outputCompression = NdjsonOutputFormat.Compression.parse(compression);
+        if (outputCompression.isCompressed()) {
+            FileOutputFormat.setCompressOutput(job, true);
+            job.getConfiguration().set(org.apache.avro.mapred.AvroJob.OUTPUT_CODEC, DataFileConstants.DEFLATE_CODEC);
+            if (outputCompression.getLevel() != Deflater.DEFAULT_COMPRESSION) {
+                job.getConfiguration().setInt(AvroOutputFormat.DEFLATE_LEVEL_KEY, outputCompression.getLevel());
+            }
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         int res = ToolRunner.run(new AvroToJson(), args);
         System.exit(res);
@@ -128,15 +467,71 @@ public class AvroToJson extends Configured implements Tool {
 
     int maxMapSizeMb;
 
+    int splitsPerNode;
+
     int maxRowJsonSize;
 
+    boolean transcode;
+
+    int threads;
+
+    String compression;
+
+    int maxPartSizeMb;
+
+    int maxPartCompressedSizeMb;
+
+    boolean oversizeOutput;
+
+    int fieldSample;
+
+    String columns;
+
+    String where;
+
+    String maps;
+
+    boolean avro;
+
+    String partitionBy;
+
+    double sample;
+
+    boolean evolve;
+
+    boolean incremental;
+
+    private ProcessedManifest manifest;
+
     private void parseConfig(String[] args) throws ParseException {
         Options options = new Options();
         options.addOption("s", "avroschema", true, "Avro schema file to be processed.");
+        options.addOption("e", "evolve", false, "Resolve the input files against the merge of their writer schemas and the -s schema, if given.");
         options.addOption("f", "file", true, "Avro file or directory to be processed.");
         options.addOption("o", "output", true, "Output directory.");
         options.addOption("m", "mapsize", true, "Max split mapsize in MB.");
+        options.addOption("n", "splitspernode", true, "Target splits per node, lowers the split size below -m to spread the input over the cluster.");
         options.addOption("r", "rowsize", true, "Max json row size bytes.");
+        options.addOption("t", "transcode", false, "Transcode Avro binary straight to json, without building records.");
+        options.addOption("p", "threads", true, "Conversion threads per map task, transcodes Avro blocks in parallel.");
+        options.addOption("c", "compression", true, "Output compression: none, gzip[:level] or pgzip[:level] (parallel gzip).");
+        options.addOption("b", "partsize", true, "Max json part file size in MB before compression.");
+        options.addOption("z", "partcompressedsize", true, "Max compressed part file size in MB, 3584 by default to stay below BigQuery's 4 GB limit.");
+        options.addOption("x", "oversize", false, "Write records over the row size limit as Avro to oversize-* files in the output directory.");
+        options.addOption("a", "fieldsample", true, "Count json bytes of every top-level field in one of <arg> records (record path only).");
+        options.addOption("i", "incremental", false, "Convert only input files new or changed since the last run into a new subdirectory of the output, "
+            + "tracked in its " + ProcessedManifest.FILE + " manifest.");
+        options.addOption("l", "columns", true, "Comma separated top-level columns to convert, all by default.");
+        options.addOption("w", "where", true, "Convert only rows matching predicates on top-level columns joined with and, "
+            + "e.g. \"country = 'PL' and price >= 10 and user is not null\" (record path only).");
+        options.addOption("k", "maps", true, "Map encoding: records (repeated key and value records, the default) "
+            + "or json (a json object in a STRING column).");
+        options.addOption("v", "avro", false, "Write Avro for a BigQuery Avro load instead of json, deflated unless -c is none (record path only).");
+        options.addOption("g", "partition-by", true, "Write rows into <arg>=<value> subdirectories of the output by this top-level column, "
+            + "DATE and TIMESTAMP ones by day (record path only).");
+        options.addOption("d", "sample", true, "Dry run: convert this fraction of the Avro blocks, e.g. 0.01, on the client and print "
+            + "the projected output size, oversize rate and a split size, instead of running the job.");
+        options.addOption(null, "dry-run", true, "Same as -d.");
         options.addOption("u", "usage", false, "Print usage.");
 
         CommandLineParser parser = new PosixParser();
@@ -147,9 +542,11 @@ public class AvroToJson extends Configured implements Tool {
             throw new ParseException("u");
         }
 
+        evolve = cl.hasOption("e");
+        incremental = cl.hasOption("i");
         if (cl.hasOption("s")) {
             avroschema = cl.getOptionValue("s");
-        } else {
+        } else if (!evolve) {
             logUsage(options);
             throw new ParseException("s");
         }
@@ -174,12 +571,104 @@ public class AvroToJson extends Configured implements Tool {
             maxMapSizeMb = 512;
         }
 
+        if (cl.hasOption("n")) {
+            splitsPerNode = Integer.parseInt(cl.getOptionValue("n"));
+        }
+
         if (cl.hasOption("r")) {
             maxRowJsonSize = Integer.parseInt(cl.getOptionValue("r"));
         } else {
             maxRowJsonSize = MAXSIZE;
         }
 
+        transcode = cl.hasOption("t");
+
+        if (cl.hasOption("p")) {
+            threads = Integer.parseInt(cl.getOptionValue("p"));
+        } else {
+            threads = 1;
+        }
+
+        if (cl.hasOption("c")) {
+            compression = cl.getOptionValue("c");
+            try {
+                NdjsonOutputFormat.Compression.parse(compression);
+            } catch (IllegalArgumentException e) {
+                logUsage(options);
+                throw new ParseException("c");
+            }
+        } else {
+            compression = NdjsonOutputFormat.DEFAULT_COMPRESSION;
+        }
+
+        if (cl.hasOption("b")) {
+            maxPartSizeMb = Integer.parseInt(cl.getOptionValue("b"));
+        } else {
+            maxPartSizeMb = 0;
+        }
+
+        if (cl.hasOption("z")) {
+            maxPartCompressedSizeMb = Integer.parseInt(cl.getOptionValue("z"));
+        } else {
+            maxPartCompressedSizeMb = (int) (NdjsonOutputFormat.DEFAULT_PART_MAX_COMPRESSED_SIZE / 1024 / 1024);
+        }
+
+        if (cl.hasOption("a")) {
+            fieldSample = Integer.parseInt(cl.getOptionValue("a"));
+        } else {
+            fieldSample = 0;
+        }
+
+        oversizeOutput = cl.hasOption("x");
+        if (oversizeOutput && (transcode || threads > 1)) {
+            // only the record path has the Avro record of a skipped row at hand
+            logUsage(options);
+            throw new ParseException("x");
+        }
+
+        columns = cl.getOptionValue("l");
+
+        where = cl.getOptionValue("w");
+        if (where != null && (transcode || threads > 1)) {
+            // the transcoding paths never decode values, so they have nothing to evaluate the filter on
+            logUsage(options);
+            throw new ParseException("w");
+        }
+
+        if (cl.hasOption("k")) {
+            maps = cl.getOptionValue("k");
+            try {
+                MapEncoding.parse(maps);
+            } catch (IllegalArgumentException e) {
+                logUsage(options);
+                throw new ParseException("k");
+            }
+        } else {
+            maps = "records";
+        }
+
+        avro = cl.hasOption("v");
+        if (avro && (transcode || threads > 1 || oversizeOutput || MapEncoding.parse(maps).equals(MapEncoding.JSON))) {
+            // Avro rows have no json size limit to overflow and maps are always key and value records
+            logUsage(options);
+            throw new ParseException("v");
+        }
+
+        partitionBy = cl.getOptionValue("g");
+        if (partitionBy != null && (transcode || threads > 1 || avro)) {
+            // only the record path has the column value of a row at hand
+            logUsage(options);
+            throw new ParseException("g");
+        }
+
+        if (cl.hasOption("d") || cl.hasOption("dry-run")) {
+            sample = Double.parseDouble(cl.hasOption("d") ? cl.getOptionValue("d") : cl.getOptionValue("dry-run"));
+            if (sample <= 0 || sample > 1 || avro) {
+                // the estimate is of json rows
+                logUsage(options);
+                throw new ParseException("d");
+            }
+        }
     }
 
     private static void logUsage(Options options) {
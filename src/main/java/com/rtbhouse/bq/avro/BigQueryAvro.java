@@ -0,0 +1,333 @@
+package com.rtbhouse.bq.avro;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.IndexedRecord;
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * Rewrites records into Avro which BigQuery loads into the table of the .bqsc schema, following
+ * the rules of {@link SchemaConverter}: maps become arrays of key and value records, unions with
+ * more than one non-null branch nullable records of their branches, and arrays drop null elements.
+ * Parts of the schema which need none of that are passed through as they are, without copying.
+ */
+final class BigQueryAvro {
+
+    static final String NAMESPACE = "com.rtbhouse.bq.avro.bigquery";
+
+    private static final Converter IDENTITY = datum -> datum;
+
+    private final Map<Schema, Schema> records = new IdentityHashMap<>();
+
+    private final Set<Schema> mapping = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private final Schema schema;
+
+    private final Converter converter;
+
+    private int entries;
+
+    private int unions;
+
+    /**
+     * Converter of records of the schema which keeps only the given top-level columns, or all of
+     * them for null columns.
+     */
+    BigQueryAvro(Schema schema, Set<String> columns) {
+        this.schema = map(Projection.project(schema, columns));
+        this.converter = compile(schema, this.schema, new IdentityHashMap<>());
+    }
+
+    Schema getSchema() {
+        return schema;
+    }
+
+    GenericRecord convert(GenericRecord record) {
+        return (GenericRecord) converter.convert(record);
+    }
+
+    private Schema map(Schema schema) {
+        switch (schema.getType()) {
+            case RECORD:
+                return mapRecord(schema);
+            case ARRAY:
+                Schema element = map(schema.getElementType());
+                if (element.getType().equals(Schema.Type.UNION) && nonNull(element) != null) {
+                    element = nonNull(element);
+                }
+                return element == schema.getElementType() ? schema : Schema.createArray(element);
+            case MAP:
+                List<Schema.Field> fields = new ArrayList<>();
+                fields.add(new Schema.Field("key", Schema.create(Schema.Type.STRING), null, null));
+                fields.add(new Schema.Field("value", map(schema.getValueType()), null, null));
+                Schema entry = Schema.createRecord("MapEntry" + ++entries, null, NAMESPACE, false);
+                entry.setFields(fields);
+                return Schema.createArray(entry);
+            case UNION:
+                return mapUnion(schema);
+            default:
+                return schema;
+        }
+    }
+
+    private Schema mapRecord(Schema schema) {
+        Schema mapped = records.get(schema);
+        if (mapped != null) {
+            return mapped;
+        } else if (!mapping.add(schema)) {
+            throw new IllegalArgumentException("Cannot write recursive record " + schema.getFullName() + " for BigQuery");
+        }
+        List<Schema.Field> fields = new ArrayList<>();
+        boolean changed = false;
+        for (Schema.Field field : schema.getFields()) {
+            Schema fieldSchema = map(field.schema());
+            // the default of a rewritten field may no longer fit its schema
+            boolean same = fieldSchema == field.schema();
+            Schema.Field copy = new Schema.Field(field.name(), fieldSchema, field.doc(), same ? field.defaultValue() : null, field.order());
+            for (Map.Entry<String, JsonNode> prop : field.getJsonProps().entrySet()) {
+                copy.addProp(prop.getKey(), prop.getValue());
+            }
+            fields.add(copy);
+            changed |= !same;
+        }
+        mapped = schema;
+        if (changed) {
+            mapped = Schema.createRecord(schema.getName(), schema.getDoc(), schema.getNamespace(), schema.isError());
+            mapped.setFields(fields);
+            for (Map.Entry<String, JsonNode> prop : schema.getJsonProps().entrySet()) {
+                mapped.addProp(prop.getKey(), prop.getValue());
+            }
+        }
+        mapping.remove(schema);
+        records.put(schema, mapped);
+        return mapped;
+    }
+
+    private Schema mapUnion(Schema union) {
+        if (SchemaConverter.isBranchRecord(union)) {
+            List<Schema.Field> fields = new ArrayList<>();
+            for (Schema branch : union.getTypes()) {
+                if (!branch.getType().equals(Schema.Type.NULL)) {
+                    fields.add(new Schema.Field(SchemaConverter.branchName(union, branch), nullable(map(branch)), null, null));
+                }
+            }
+            Schema branches = Schema.createRecord("Union" + ++unions, null, NAMESPACE, false);
+            branches.setFields(fields);
+            return nullable(branches);
+        }
+        List<Schema> types = new ArrayList<>();
+        boolean changed = false;
+        for (Schema type : union.getTypes()) {
+            Schema mapped = map(type);
+            types.add(mapped);
+            changed |= mapped != type;
+        }
+        return changed ? Schema.createUnion(types) : union;
+    }
+
+    private static Schema nullable(Schema schema) {
+        List<Schema> types = new ArrayList<>();
+        types.add(Schema.create(Schema.Type.NULL));
+        types.add(schema);
+        return Schema.createUnion(types);
+    }
+
+    /**
+     * The only non-null branch of the union, or null if it has several.
+     */
+    private static Schema nonNull(Schema union) {
+        Schema nonNull = null;
+        for (Schema branch : union.getTypes()) {
+            if (branch.getType().equals(Schema.Type.NULL)) {
+                continue;
+            } else if (nonNull != null) {
+                return null;
+            }
+            nonNull = branch;
+        }
+        return nonNull;
+    }
+
+    private static Converter compile(Schema in, Schema out, Map<Schema, RecordConverter> records) {
+        if (in == out) {
+            return IDENTITY;
+        }
+        switch (in.getType()) {
+            case RECORD:
+                RecordConverter record = records.get(in);
+                if (record == null) {
+                    record = new RecordConverter(out);
+                    records.put(in, record);
+                    record.compileFields(in, records);
+                }
+                return record;
+            case ARRAY:
+                return new ArrayConverter(out, compile(in.getElementType(), out.getElementType(), records));
+            case MAP:
+                return new MapConverter(out, compile(in.getValueType(), out.getElementType().getField("value").schema(), records));
+            case UNION:
+                return compileUnion(in, out, records);
+            default:
+                return IDENTITY;
+        }
+    }
+
+    private static Converter compileUnion(Schema in, Schema out, Map<Schema, RecordConverter> records) {
+        Schema target = out.getType().equals(Schema.Type.UNION) ? nonNull(out) : out;
+        if (!SchemaConverter.isBranchRecord(in)) {
+            // a nullable union, or a single branch one which now is a plain array element
+            return new NullableConverter(compile(nonNull(in), target, records));
+        }
+        Converter[] branches = new Converter[in.getTypes().size()];
+        int[] positions = new int[branches.length];
+        for (int i = 0; i < branches.length; i++) {
+            Schema branch = in.getTypes().get(i);
+            if (!branch.getType().equals(Schema.Type.NULL)) {
+                Schema.Field field = target.getField(SchemaConverter.branchName(in, branch));
+                positions[i] = field.pos();
+                branches[i] = compile(branch, nonNull(field.schema()), records);
+            }
+        }
+        return new BranchConverter(in, target, positions, branches);
+    }
+
+    private interface Converter {
+
+        Object convert(Object datum);
+    }
+
+    private static final class RecordConverter implements Converter {
+
+        private final Schema schema;
+
+        private final int[] positions;
+
+        private final Converter[] fields;
+
+        private RecordConverter(Schema schema) {
+            this.schema = schema;
+            positions = new int[schema.getFields().size()];
+            fields = new Converter[positions.length];
+        }
+
+        private void compileFields(Schema in, Map<Schema, RecordConverter> records) {
+            for (Schema.Field field : schema.getFields()) {
+                Schema.Field inField = in.getField(field.name());
+                positions[field.pos()] = inField.pos();
+                fields[field.pos()] = compile(inField.schema(), field.schema(), records);
+            }
+        }
+
+        @Override
+        public Object convert(Object datum) {
+            IndexedRecord record = (IndexedRecord) datum;
+            GenericData.Record converted = new GenericData.Record(schema);
+            for (int i = 0; i < positions.length; i++) {
+                Object field = record.get(positions[i]);
+                converted.put(i, field == null ? null : fields[i].convert(field));
+            }
+            return converted;
+        }
+    }
+
+    private static final class ArrayConverter implements Converter {
+
+        private final Schema schema;
+
+        private final Converter element;
+
+        private ArrayConverter(Schema schema, Converter element) {
+            this.schema = schema;
+            this.element = element;
+        }
+
+        @Override
+        public Object convert(Object datum) {
+            Collection<?> array = (Collection<?>) datum;
+            GenericData.Array<Object> converted = new GenericData.Array<>(array.size(), schema);
+            for (Object value : array) {
+                Object convertedValue = value == null ? null : element.convert(value);
+                if (convertedValue != null) {
+                    converted.add(convertedValue);
+                }
+            }
+            return converted;
+        }
+    }
+
+    private static final class MapConverter implements Converter {
+
+        private final Schema schema;
+
+        private final Converter value;
+
+        private MapConverter(Schema schema, Converter value) {
+            this.schema = schema;
+            this.value = value;
+        }
+
+        @Override
+        public Object convert(Object datum) {
+            Map<?, ?> map = (Map<?, ?>) datum;
+            GenericData.Array<Object> entries = new GenericData.Array<>(map.size(), schema);
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                GenericData.Record converted = new GenericData.Record(schema.getElementType());
+                converted.put(0, entry.getKey());
+                converted.put(1, entry.getValue() == null ? null : value.convert(entry.getValue()));
+                entries.add(converted);
+            }
+            return entries;
+        }
+    }
+
+    private static final class NullableConverter implements Converter {
+
+        private final Converter value;
+
+        private NullableConverter(Converter value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object convert(Object datum) {
+            return datum == null ? null : value.convert(datum);
+        }
+    }
+
+    private static final class BranchConverter implements Converter {
+
+        private final Schema union;
+
+        private final Schema schema;
+
+        private final int[] positions;
+
+        private final Converter[] branches;
+
+        private BranchConverter(Schema union, Schema schema, int[] positions, Converter[] branches) {
+            this.union = union;
+            this.schema = schema;
+            this.positions = positions;
+            this.branches = branches;
+        }
+
+        @Override
+        public Object convert(Object datum) {
+            int branch = GenericData.get().resolveUnion(union, datum);
+            if (branches[branch] == null) {
+                return null;
+            }
+            GenericData.Record converted = new GenericData.Record(schema);
+            converted.put(positions[branch], branches[branch].convert(datum));
+            return converted;
+        }
+    }
+}
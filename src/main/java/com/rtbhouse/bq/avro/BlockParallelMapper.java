@@ -0,0 +1,127 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.avro.Schema;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+
+/**
+ * Transcodes the Avro blocks of a split on a pool of threads and writes the json in input order.
+ * Every block becomes a single newline separated chunk of rows, so the output looks the same as
+ * with one row per record. Hadoop's MultithreadedMapper is not used, since it hands out single
+ * records under a lock and does not keep their order.
+ */
+public class BlockParallelMapper extends Mapper<AvroBlock, NullWritable, Text, NullWritable> {
+
+    public static final String THREADS = "json.threads";
+
+    private final Text text = new Text();
+
+    private final ConversionStats stats = new ConversionStats();
+
+    private final List<AvroBlockConverter> converters = Collections.synchronizedList(new ArrayList<>());
+
+    private int rowMaxSize;
+
+    private int threads;
+
+    private Schema target;
+
+    private Set<String> columns;
+
+    private MapEncoding maps;
+
+    @Override
+    public void setup(Context context) throws IOException, InterruptedException {
+        stats.input(context.getInputSplit().getLength());
+        Configuration configuration = context.getConfiguration();
+        rowMaxSize = configuration.getInt(AvroToJson.ROWMAXSIZE, AvroToJson.MAXSIZE);
+        threads = configuration.getInt(THREADS, Runtime.getRuntime().availableProcessors());
+        target = SchemaMetadata.load(configuration);
+        columns = Projection.parseColumns(configuration.get(AvroToJson.COLUMNS));
+        maps = MapEncoding.parse(configuration.get(AvroToJson.MAPS));
+    }
+
+    @Override
+    public void run(Context context) throws IOException, InterruptedException {
+        setup(context);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ThreadLocal<AvroBlockConverter> threadConverters = ThreadLocal.withInitial(() -> {
+            AvroBlockConverter converter = new AvroBlockConverter(rowMaxSize, target, columns, maps);
+            converters.add(converter);
+            return converter;
+        });
+        // two blocks per thread keep the workers busy while the oldest one is being written
+        int maxPending = 2 * threads;
+        Deque<JsonOutput> free = new ArrayDeque<>();
+        for (int i = 0; i < maxPending; i++) {
+            free.add(new JsonOutput());
+        }
+        Deque<Future<JsonOutput>> pending = new ArrayDeque<>();
+        try {
+            while (context.nextKeyValue()) {
+                if (pending.size() == maxPending) {
+                    free.add(write(pending.poll(), context));
+                }
+                AvroBlock block = context.getCurrentKey();
+                JsonOutput output = free.poll();
+                pending.add(executor.submit(() -> {
+                    output.reset();
+                    threadConverters.get().convert(block, output);
+                    return output;
+                }));
+            }
+            while (!pending.isEmpty()) {
+                write(pending.poll(), context);
+            }
+            executor.shutdown();
+        } finally {
+            if (!executor.isShutdown()) {
+                // failed with blocks in flight, their output is of no use anymore
+                executor.shutdownNow();
+            }
+            // the converters' stats are read by cleanup once no block is converted anymore
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            cleanup(context);
+        }
+    }
+
+    @Override
+    public void cleanup(Context context) {
+        for (AvroBlockConverter converter : converters) {
+            stats.add(converter.getStats());
+        }
+        if (stats.getSkipped() > 0) {
+            System.out.println(String.format("Skipped records too big: %s", stats.getSkipped()));
+        }
+        stats.publish(context);
+    }
+
+    private JsonOutput write(Future<JsonOutput> pending, Context context) throws IOException, InterruptedException {
+        JsonOutput output;
+        try {
+            output = pending.get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (output.getLength() > 0) {
+            // the output format terminates the chunk with the newline of its last row
+            text.set(output.getBytes(), 0, output.getLength() - 1);
+            context.write(text, NullWritable.get());
+        }
+        return output;
+    }
+}
@@ -0,0 +1,41 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.IOException;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReaderWrapper;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+public class CombineAvroBlockInputFormat extends AvroCombineFileInputFormat<AvroBlock, NullWritable> {
+
+    @Override
+    public RecordReader<AvroBlock, NullWritable> createRecordReader(InputSplit inputSplit, TaskAttemptContext context)
+            throws IOException {
+
+        return new CombineFileRecordReader<>(
+                (CombineFileSplit) inputSplit,
+                context,
+                AvroBlockRecordReaderWrapper.class);
+    }
+
+    public static class AvroBlockInputFormat extends FileInputFormat<AvroBlock, NullWritable> {
+
+        @Override
+        public RecordReader<AvroBlock, NullWritable> createRecordReader(InputSplit split, TaskAttemptContext context) {
+            return new AvroBlockRecordReader();
+        }
+    }
+
+    public static class AvroBlockRecordReaderWrapper extends CombineFileRecordReaderWrapper<AvroBlock, NullWritable> {
+
+        public AvroBlockRecordReaderWrapper(CombineFileSplit split, TaskAttemptContext context, Integer idx)
+                throws IOException, InterruptedException {
+
+            super(new AvroBlockInputFormat(), split, context, idx);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.IOException;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReaderWrapper;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+public class CombineAvroJsonInputFormat extends AvroCombineFileInputFormat<Text, NullWritable> {
+
+    @Override
+    public RecordReader<Text, NullWritable> createRecordReader(InputSplit inputSplit, TaskAttemptContext context)
+            throws IOException {
+
+        return new CombineFileRecordReader<>(
+                (CombineFileSplit) inputSplit,
+                context,
+                AvroJsonRecordReaderWrapper.class);
+    }
+
+    public static class AvroJsonInputFormat extends FileInputFormat<Text, NullWritable> {
+
+        @Override
+        public RecordReader<Text, NullWritable> createRecordReader(InputSplit split, TaskAttemptContext context) {
+            return new AvroJsonRecordReader();
+        }
+    }
+
+    public static class AvroJsonRecordReaderWrapper extends CombineFileRecordReaderWrapper<Text, NullWritable> {
+
+        public AvroJsonRecordReaderWrapper(CombineFileSplit split, TaskAttemptContext context, Integer idx)
+                throws IOException, InterruptedException {
+
+            super(new AvroJsonInputFormat(), split, context, idx);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.mapred.AvroKey;
+import org.apache.avro.mapred.FsInput;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+
+/**
+ * Reads the records of all files of a combined split with one decoder, decoding every datum into
+ * the record of the previous one, its strings, arrays and maps included. Datum readers, with the
+ * schema resolution they compile, are shared by all files of the same writer schema. The key is
+ * only valid until the next call to {@link #nextKeyValue()}.
+ */
+public class CombineAvroRecordReader extends RecordReader<AvroKey<GenericRecord>, NullWritable> {
+
+    private final AvroKey<GenericRecord> key = new AvroKey<>();
+
+    private final Map<Long, GenericDatumReader<GenericRecord>> datumReaders = new HashMap<>();
+
+    private CombineFileSplit split;
+
+    private TaskAttemptContext context;
+
+    private Schema target;
+
+    private AvroBlockReader reader;
+
+    private GenericDatumReader<GenericRecord> datumReader;
+
+    private BinaryDecoder decoder;
+
+    private GenericRecord record;
+
+    private int file = -1;
+
+    private long remaining;
+
+    private long done;
+
+    @Override
+    public void initialize(InputSplit inputSplit, TaskAttemptContext context) {
+        this.split = (CombineFileSplit) inputSplit;
+        this.context = context;
+        target = SchemaMetadata.load(context.getConfiguration());
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException {
+        while (remaining == 0) {
+            ByteBuffer block = reader == null ? null : reader.nextBlockInSplit();
+            if (block == null) {
+                if (!nextFile()) {
+                    return false;
+                }
+                continue;
+            }
+            remaining = reader.getBlockCount();
+            decoder = DecoderFactory.get().binaryDecoder(
+                block.array(), block.arrayOffset() + block.position(), block.remaining(), decoder);
+        }
+        remaining--;
+        record = datumReader.read(record, decoder);
+        key.datum(record);
+        return true;
+    }
+
+    private boolean nextFile() throws IOException {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+            done += split.getLength(file);
+        }
+        if (++file >= split.getNumPaths()) {
+            return false;
+        }
+        long start = split.getOffset(file);
+        reader = new AvroBlockReader(new FsInput(split.getPath(file), context.getConfiguration()), start, start + split.getLength(file));
+        Schema writerSchema = reader.getSchema();
+        datumReader = datumReaders.computeIfAbsent(SchemaNormalization.parsingFingerprint64(writerSchema),
+            fingerprint -> new GenericDatumReader<>(writerSchema, target == null ? writerSchema : target));
+        return true;
+    }
+
+    @Override
+    public AvroKey<GenericRecord> getCurrentKey() {
+        return key;
+    }
+
+    @Override
+    public NullWritable getCurrentValue() {
+        return NullWritable.get();
+    }
+
+    @Override
+    public float getProgress() throws IOException {
+        if (split == null || split.getLength() == 0) {
+            return 0.0f;
+        }
+        long read = done;
+        if (reader != null && file < split.getNumPaths()) {
+            read += Math.max(0, reader.previousSync() - split.getOffset(file));
+        }
+        return Math.min(1.0f, read / (float) split.getLength());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.rtbhouse.bq.avro;
+
+import java.util.Arrays;
+import java.util.List;
+import org.apache.avro.Schema;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Conversion metrics of a task, gathered in plain fields on the hot path and added to the Hadoop
+ * counters once, when the task is done. Not thread-safe, parallel converters keep one each and
+ * merge them with {@link #add(ConversionStats)}.
+ */
+class ConversionStats {
+
+    public enum Counters {
+        RECORDS_IN, RECORDS_OUT, BYTES_IN, BYTES_OUT, SKIPPED_OVERSIZE, FILTERED, MAX_ROW_SIZE
+    }
+
+    static final String ROW_SIZE_GROUP = "Json row size";
+
+    static final String FIELD_BYTES_GROUP = "Json field bytes (sampled)";
+
+    static final String FIELD_SAMPLE = "json.counters.field.sample";
+
+    // rows up to 2^6 bytes share the first bucket, the last one is open ended
+    private static final int MIN_BUCKET = 6;
+
+    private static final int BUCKETS = 32 - MIN_BUCKET;
+
+    private final long[] rowSizes = new long[BUCKETS];
+
+    private final String[] fields;
+
+    private final long[] fieldBytes;
+
+    private long recordsIn;
+
+    private long recordsOut;
+
+    private long bytesIn;
+
+    private long bytesOut;
+
+    private long skipped;
+
+    private long filtered;
+
+    private long maxRowSize;
+
+    ConversionStats() {
+        this(null);
+    }
+
+    /**
+     * Stats which also account the encoded bytes of every top-level field of the given record
+     * schema, for rows passed to {@link #fieldBytes()}.
+     */
+    ConversionStats(Schema schema) {
+        if (schema == null) {
+            fields = new String[0];
+        } else {
+            List<Schema.Field> schemaFields = schema.getFields();
+            fields = new String[schemaFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = schemaFields.get(i).name();
+            }
+        }
+        fieldBytes = new long[fields.length];
+    }
+
+    long getRecordsIn() {
+        return recordsIn;
+    }
+
+    long getSkipped() {
+        return skipped;
+    }
+
+    long[] fieldBytes() {
+        return fieldBytes;
+    }
+
+    void input(long bytes) {
+        bytesIn += bytes;
+    }
+
+    /**
+     * Records a row written with the given json size, the newline terminating it not included.
+     */
+    void row(int size) {
+        recordsIn++;
+        recordsOut++;
+        bytesOut += size + 1;
+        maxRowSize = Math.max(maxRowSize, size);
+        rowSizes[bucket(size)]++;
+    }
+
+    /**
+     * Records a row written as Avro, which has no json size.
+     */
+    void row() {
+        recordsIn++;
+        recordsOut++;
+    }
+
+    void skip() {
+        recordsIn++;
+        skipped++;
+    }
+
+    void filter() {
+        recordsIn++;
+        filtered++;
+    }
+
+    void add(ConversionStats other) {
+        recordsIn += other.recordsIn;
+        recordsOut += other.recordsOut;
+        bytesIn += other.bytesIn;
+        bytesOut += other.bytesOut;
+        skipped += other.skipped;
+        filtered += other.filtered;
+        maxRowSize = Math.max(maxRowSize, other.maxRowSize);
+        for (int i = 0; i < BUCKETS; i++) {
+            rowSizes[i] += other.rowSizes[i];
+        }
+        for (int i = 0; i < fieldBytes.length && i < other.fieldBytes.length; i++) {
+            fieldBytes[i] += other.fieldBytes[i];
+        }
+    }
+
+    /**
+     * Adds the stats to the task counters and clears them, so they can be published again later.
+     */
+    void publish(TaskAttemptContext context) {
+        context.getCounter(Counters.RECORDS_IN).increment(recordsIn);
+        context.getCounter(Counters.RECORDS_OUT).increment(recordsOut);
+        context.getCounter(Counters.BYTES_IN).increment(bytesIn);
+        context.getCounter(Counters.BYTES_OUT).increment(bytesOut);
+        context.getCounter(Counters.SKIPPED_OVERSIZE).increment(skipped);
+        context.getCounter(Counters.FILTERED).increment(filtered);
+        // a max does not add up, the job total is only meaningful for a single task
+        Counter max = context.getCounter(Counters.MAX_ROW_SIZE);
+        max.setValue(Math.max(max.getValue(), maxRowSize));
+        for (int i = 0; i < BUCKETS; i++) {
+            if (rowSizes[i] > 0) {
+                context.getCounter(ROW_SIZE_GROUP, bucketName(i)).increment(rowSizes[i]);
+            }
+        }
+        for (int i = 0; i < fields.length; i++) {
+            if (fieldBytes[i] > 0) {
+                context.getCounter(FIELD_BYTES_GROUP, fields[i]).increment(fieldBytes[i]);
+            }
+        }
+        clear();
+    }
+
+    private void clear() {
+        recordsIn = 0;
+        recordsOut = 0;
+        bytesIn = 0;
+        bytesOut = 0;
+        skipped = 0;
+        filtered = 0;
+        maxRowSize = 0;
+        Arrays.fill(rowSizes, 0);
+        Arrays.fill(fieldBytes, 0);
+    }
+
+    static int bucket(int size) {
+        int log = size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return Math.min(Math.max(log - MIN_BUCKET, 0), BUCKETS - 1);
+    }
+
+    /**
+     * Orders bucket names by the sizes they stand for.
+     */
+    static int bucketOrder(String bucketName) {
+        for (int i = 0; i < BUCKETS; i++) {
+            if (bucketName(i).equals(bucketName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static String bucketName(int bucket) {
+        if (bucket == BUCKETS - 1) {
+            return String.format("over 2^%02d bytes", BUCKETS - 2 + MIN_BUCKET);
+        }
+        return String.format("up to 2^%02d bytes", bucket + MIN_BUCKET);
+    }
+}
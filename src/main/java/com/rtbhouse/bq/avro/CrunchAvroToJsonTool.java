@@ -2,10 +2,10 @@ package com.rtbhouse.bq.avro;
 
 import java.io.File;
 import java.io.PrintWriter;
-import java.io.Serializable;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.Deflater;
 
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData.Record;
@@ -20,6 +20,7 @@ import org.apache.crunch.DoFn;
 import org.apache.crunch.Emitter;
 import org.apache.crunch.PCollection;
 import org.apache.crunch.Pipeline;
+import org.apache.crunch.PipelineResult;
 import org.apache.crunch.impl.mr.MRPipeline;
 import org.apache.crunch.io.From;
 import org.apache.crunch.io.To;
@@ -28,15 +29,18 @@ import org.apache.crunch.types.writable.Writables;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.io.compress.zlib.ZlibCompressor;
+import org.apache.hadoop.io.compress.zlib.ZlibFactory;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 
-public class CrunchAvroToJsonTool extends Configured implements Tool, Serializable {
+public class CrunchAvroToJsonTool extends Configured implements Tool {
 
     public static final String JOB_NAME = CrunchAvroToJsonTool.class.getSimpleName();
 
@@ -44,8 +48,6 @@ public class CrunchAvroToJsonTool extends Configured implements Tool, Serializab
 
     public static final int MAXSIZE = 2 * 1024 * 1024;
 
-    private static Schema schema = null;
-
     public static void main(String[] args) throws Exception {
         int exitCode = ToolRunner.run(new Configuration(), new CrunchAvroToJsonTool(), args);
         System.exit(exitCode);
@@ -55,13 +57,16 @@ public class CrunchAvroToJsonTool extends Configured implements Tool, Serializab
     public int run(String[] args) throws Exception {
         parseConfig(args);
         Configuration conf = getConf();
-        schema = SchemaConverter.readSchema(avroschema, conf);
-        String convert = new SchemaConverter().convert(schema);
+        Schema schema = SchemaConverter.readSchema(avroschema, conf);
+        String convert = SchemaMetadata.of(schema).getBigQuerySchema();
         Files.write(convert, new File(SCHEMA_BQSC_FILE), Charsets.UTF_8);
-        conf.setBoolean("mapreduce.output.fileoutputformat.compress", true);
+        NdjsonOutputFormat.Compression outputCompression = NdjsonOutputFormat.Compression.parse(compression);
+        conf.setBoolean("mapreduce.output.fileoutputformat.compress", outputCompression.isCompressed());
         conf.set("mapreduce.output.fileoutputformat.compress.type", "BLOCK");
         conf.setClass("mapreduce.output.fileoutputformat.compress.codec", GzipCodec.class, CompressionCodec.class);
+        ZlibFactory.setCompressionLevel(conf, zlibLevel(outputCompression.getLevel()));
         conf.setInt("crunch.combine.file.block.size", maxMapSizeMb * 1024 * 1024);
+        SchemaMetadata.store(conf, schema);
         Pipeline pipeline = new MRPipeline(getClass(), getClass().getSimpleName(), conf);
         List<Path> inputs = new ArrayList<>();
         Lists.newArrayList(files.split(",")).stream().forEach((file) -> {
@@ -69,24 +74,83 @@ public class CrunchAvroToJsonTool extends Configured implements Tool, Serializab
         });
         PCollection<Record> avroRecords = pipeline.read(From.avroFile(inputs, Avros.generics(schema)));
         avroRecords
-            .parallelDo(new DoFn<Record, String>() {
-                private int skipped = 0;
-
-                @Override
-                public void process(Record avro, Emitter<String> emtr) {
-                    String build = new JsonBuilder().build(avro);
-                    int length = build.length();
-                    if (length > maxRowJsonSize) {
-                        System.out.println(String.format("Skipping record too big: %s; total skipped: %s", length, ++skipped));
-                        return;
-                    }
-                    emtr.emit(build);
-                }
-
-            }, Writables.strings())
+            .parallelDo(new JsonRowFn(maxRowJsonSize), Writables.writables(Text.class))
             .write(To.textFile(outputDirectory));
-        pipeline.done();
-        return 0;
+        PipelineResult result = pipeline.done();
+        long rows = 0;
+        long skipped = 0;
+        for (PipelineResult.StageResult stage : result.getStageResults()) {
+            rows += stage.getCounterValue(ConversionStats.Counters.RECORDS_OUT);
+            skipped += stage.getCounterValue(ConversionStats.Counters.SKIPPED_OVERSIZE);
+        }
+        System.out.println(String.format("Written %s records; skipped records too big: %s", rows, skipped));
+        return result.succeeded() ? 0 : 1;
+    }
+
+    /**
+     * Encodes records into json rows, each emitted as a {@link Text} of its own, since emitted values
+     * may be held on to downstream. Records go straight to the encoder, so Crunch is told not to copy
+     * them, and rows over the size limit only show in the counters.
+     */
+    static class JsonRowFn extends DoFn<Record, Text> {
+
+        private final int rowMaxSize;
+
+        private transient ConversionStats stats;
+
+        private transient JsonBuilder jsonBuilder;
+
+        private transient JsonOutput output;
+
+        JsonRowFn(int rowMaxSize) {
+            this.rowMaxSize = rowMaxSize;
+        }
+
+        @Override
+        public void initialize() {
+            jsonBuilder = new JsonBuilder(SchemaMetadata.load(getConfiguration()));
+            output = new JsonOutput();
+            output.setLimit(rowMaxSize);
+            stats = new ConversionStats();
+        }
+
+        @Override
+        public void process(Record avro, Emitter<Text> emitter) {
+            output.reset();
+            jsonBuilder.build(avro, output);
+            if (output.isOverflow()) {
+                stats.skip();
+                return;
+            }
+            stats.row(output.getLength());
+            Text text = new Text();
+            text.set(output.getBytes(), 0, output.getLength());
+            emitter.emit(text);
+        }
+
+        @Override
+        public void cleanup(Emitter<Text> emitter) {
+            if (getContext() != null) {
+                stats.publish(getContext());
+            }
+        }
+
+        @Override
+        public boolean disableDeepCopy() {
+            return true;
+        }
+    }
+
+    private static ZlibCompressor.CompressionLevel zlibLevel(int level) {
+        // Hadoop's zlib codec, used when the native library is loaded, only knows these levels
+        if (level == Deflater.DEFAULT_COMPRESSION) {
+            return ZlibCompressor.CompressionLevel.DEFAULT_COMPRESSION;
+        } else if (level <= 3) {
+            return ZlibCompressor.CompressionLevel.BEST_SPEED;
+        } else if (level >= 7) {
+            return ZlibCompressor.CompressionLevel.BEST_COMPRESSION;
+        }
+        return ZlibCompressor.CompressionLevel.DEFAULT_COMPRESSION;
     }
 
     String avroschema;
@@ -99,6 +163,8 @@ public class CrunchAvroToJsonTool extends Configured implements Tool, Serializab
 
     int maxRowJsonSize;
 
+    String compression;
+
     private void parseConfig(String[] args) throws ParseException {
         Options options = new Options();
         options.addOption("s", "avroschema", true, "Avro schema file to be processed.");
@@ -106,6 +172,7 @@ public class CrunchAvroToJsonTool extends Configured implements Tool, Serializab
         options.addOption("o", "output", true, "Output directory.");
         options.addOption("m", "mapsize", true, "Max split mapsize in MB.");
         options.addOption("r", "rowsize", true, "Max json row size bytes.");
+        options.addOption("c", "compression", true, "Output compression: none or gzip[:level].");
         options.addOption("u", "usage", false, "Print usage.");
 
         CommandLineParser parser = new PosixParser();
@@ -149,6 +216,20 @@ public class CrunchAvroToJsonTool extends Configured implements Tool, Serializab
             maxRowJsonSize = MAXSIZE;
         }
 
+        if (cl.hasOption("c")) {
+            compression = cl.getOptionValue("c");
+            try {
+                if (NdjsonOutputFormat.Compression.parse(compression).isParallel()) {
+                    throw new IllegalArgumentException("Parallel gzip is not supported by the Crunch tool.");
+                }
+            } catch (IllegalArgumentException e) {
+                logUsage(options);
+                throw new ParseException("c");
+            }
+        } else {
+            compression = NdjsonOutputFormat.DEFAULT_COMPRESSION;
+        }
+
     }
 
     private static void logUsage(Options options) {
@@ -0,0 +1,51 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Lists the input files of a job on the client, the way the input formats will.
+ */
+final class InputFiles {
+
+    private InputFiles() {
+    }
+
+    /**
+     * All non-empty files under the given paths, which may be globs, with fully qualified paths.
+     * Files and directories starting with _ or . are skipped, like by the input formats.
+     */
+    static List<FileStatus> list(Configuration conf, List<Path> paths) throws IOException {
+        List<FileStatus> files = new ArrayList<>();
+        for (Path path : paths) {
+            FileSystem fs = path.getFileSystem(conf);
+            FileStatus[] matches = fs.globStatus(path);
+            if (matches == null || matches.length == 0) {
+                throw new IOException("Input " + path + " does not exist");
+            }
+            for (FileStatus match : matches) {
+                list(fs, match, files);
+            }
+        }
+        return files;
+    }
+
+    private static void list(FileSystem fs, FileStatus file, List<FileStatus> files) throws IOException {
+        String name = file.getPath().getName();
+        if (name.startsWith("_") || name.startsWith(".")) {
+            return;
+        }
+        if (file.isDirectory()) {
+            for (FileStatus child : fs.listStatus(file.getPath())) {
+                list(fs, child, files);
+            }
+        } else if (file.getLen() > 0) {
+            files.add(file);
+        }
+    }
+}
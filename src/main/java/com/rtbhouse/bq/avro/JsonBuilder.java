@@ -1,174 +1,72 @@
 package com.rtbhouse.bq.avro;
 
-import java.nio.ByteBuffer;
-import java.util.Collection;
-import java.util.Map;
+import java.util.Set;
 import org.apache.avro.Schema;
-import org.apache.avro.generic.GenericContainer;
-import org.apache.avro.generic.GenericEnumSymbol;
 import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.generic.IndexedRecord;
 
 public class JsonBuilder {
 
-    public String build(GenericRecord avro) {
-        StringBuilder buffer = new StringBuilder();
-        toString(avro, buffer);
-        return buffer.toString();
-    }
-
-    private void toString(Object datum, StringBuilder buffer) {
-        if (isRecord(datum)) {
-            buffer.append("{");
-            int count = 0;
-            Schema schema = getRecordSchema(datum);
-            for (Schema.Field f : schema.getFields()) {
-                Object field = getField(datum, f.pos());
-                if (field == null) {
-                    continue;
-                } else if (count++ > 0) {
-                    buffer.append(", ");
-                }
-                toString(f.name(), buffer);
-                buffer.append(": ");
-                toString(field, buffer);
-            }
-            buffer.append("}");
-        } else if (isArray(datum)) {
-            Collection<?> array = (Collection<?>) datum;
-            buffer.append("[");
-            long last = array.size() - 1;
-            int i = 0;
-            for (Object element : array) {
-                toString(element, buffer);
-                if (i++ < last) {
-                    buffer.append(", ");
-                }
-            }
-            buffer.append("]");
-        } else if (isMap(datum)) {
-            buffer.append("[");
-            int count = 0;
-            @SuppressWarnings(value = "unchecked")
-            Map<Object, Object> map = (Map<Object, Object>) datum;
-            for (Map.Entry<Object, Object> entry : map.entrySet()) {
-                buffer.append("{\"key\": ");
-                toString(entry.getKey(), buffer);
-                buffer.append(", \"value\": ");
-                toString(entry.getValue(), buffer);
-                buffer.append("}");
-                if (++count < map.size()) {
-                    buffer.append(", ");
-                }
-            }
-            buffer.append("]");
-        } else if (isString(datum) || isEnum(datum)) {
-            buffer.append("\"");
-            writeEscapedString(datum.toString(), buffer);
-            buffer.append("\"");
-        } else if (isDouble(datum)) {
-            buffer.append(Double.isNaN((Double) datum) ? "null" : datum);
-        } else if (isFloat(datum)) {
-            buffer.append(Float.isNaN((Float) datum) ? "null" : datum);
-        } else if (isBytes(datum)) {
-            buffer.append("{\"bytes\": \"");
-            ByteBuffer bytes = (ByteBuffer) datum;
-            for (int i = bytes.position(); i < bytes.limit(); i++) {
-                buffer.append((char) bytes.get(i));
-            }
-            buffer.append("\"}");
-        } else {
-            buffer.append(datum);
-        }
-    }
-
-    private Object getField(Object record, int position) {
-        return ((IndexedRecord) record).get(position);
-    }
+    private Schema schema;
 
-    private boolean isArray(Object datum) {
-        return datum instanceof Collection;
-    }
+    private JsonWriter writer;
 
-    private boolean isRecord(Object datum) {
-        return datum instanceof IndexedRecord;
-    }
+    private final Set<String> columns;
 
-    private Schema getRecordSchema(Object record) {
-        return ((GenericContainer) record).getSchema();
-    }
+    private final MapEncoding maps;
 
-    private boolean isEnum(Object datum) {
-        return datum instanceof GenericEnumSymbol || datum.getClass().isEnum();
+    public JsonBuilder() {
+        this.columns = null;
+        this.maps = MapEncoding.RECORDS;
     }
 
-    private boolean isMap(Object datum) {
-        return datum instanceof Map;
+    public JsonBuilder(Schema schema) {
+        this(schema, null);
     }
 
-    private boolean isString(Object datum) {
-        return datum instanceof CharSequence;
+    /**
+     * Builder writing only the given top-level columns of a record, all of them for null columns.
+     */
+    public JsonBuilder(Schema schema, Set<String> columns) {
+        this(schema, columns, MapEncoding.RECORDS);
     }
 
-    private boolean isDouble(Object datum) {
-        return datum instanceof Double;
+    JsonBuilder(Schema schema, Set<String> columns, MapEncoding maps) {
+        this.columns = columns;
+        this.maps = maps;
+        compile(schema);
     }
 
-    private boolean isFloat(Object datum) {
-        return datum instanceof Float;
+    public String build(GenericRecord avro) {
+        JsonOutput output = new JsonOutput();
+        build(avro, output);
+        return output.toString();
     }
 
-    private boolean isBytes(Object datum) {
-        return datum instanceof ByteBuffer;
+    public void build(GenericRecord avro, JsonOutput output) {
+        writerFor(avro.getSchema()).write(avro, output);
     }
 
-    private boolean isBoolean(Object datum) {
-        return datum instanceof Boolean;
+    /**
+     * Builds the json like {@link #build(GenericRecord, JsonOutput)}, adding the encoded size of
+     * every top-level field to fieldBytes, indexed by field position.
+     */
+    public void build(GenericRecord avro, JsonOutput output, long[] fieldBytes) {
+        JsonWriters.writeFields(writerFor(avro.getSchema()), avro, output, fieldBytes);
     }
 
-    /* Adapted from http://code.google.com/p/json-simple */
-    private void writeEscapedString(String string, StringBuilder builder) {
-        for (int i = 0; i < string.length(); i++) {
-            char ch = string.charAt(i);
-            switch (ch) {
-                case '"':
-                    builder.append("\\\"");
-                    break;
-                case '\\':
-                    builder.append("\\\\");
-                    break;
-                case '\b':
-                    builder.append("\\b");
-                    break;
-                case '\f':
-                    builder.append("\\f");
-                    break;
-                case '\n':
-                    builder.append("\\n");
-                    break;
-                case '\r':
-                    builder.append("\\r");
-                    break;
-                case '\t':
-                    builder.append("\\t");
-                    break;
-                case '/':
-                    builder.append("\\/");
-                    break;
-                default:
-                    // Reference: http://www.unicode.org/versions/Unicode5.1.0/
-                    if ((ch >= '\u0000' && ch <= '\u001F') || (ch >= '\u007F' && ch <= '\u009F') || (ch >= '\u2000' && ch <= '\u20FF')) {
-                        String hex = Integer.toHexString(ch);
-                        builder.append("\\u");
-                        for (int j = 0; j < 4 - hex.length(); j++) {
-                            builder.append('0');
-                        }
-                        builder.append(hex.toUpperCase());
-                    } else {
-                        builder.append(ch);
-                    }
-            }
+    private JsonWriter writerFor(Schema recordSchema) {
+        if (schema == recordSchema) {
+            return writer;
+        } else if (schema != null && schema.equals(recordSchema)) {
+            schema = recordSchema;
+            return writer;
         }
+        compile(recordSchema);
+        return writer;
     }
 
+    private void compile(Schema recordSchema) {
+        writer = SchemaMetadata.of(recordSchema, columns, maps).getWriter();
+        schema = recordSchema;
+    }
 }
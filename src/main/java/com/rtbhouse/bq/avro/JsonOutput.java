@@ -0,0 +1,636 @@
+package com.rtbhouse.bq.avro;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.avro.util.Utf8;
+
+/**
+ * Growable UTF-8 byte buffer the JSON writers encode into. Meant to be owned by a task and reset
+ * between rows, so the encoded row can be handed over without an intermediate String.
+ */
+public class JsonOutput {
+
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] BASE64
+        = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    /** Two ASCII digits of every number from 0 to 99. */
+    private static final byte[] DIGIT_PAIRS = new byte[200];
+
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    private static final long SECONDS_PER_DAY = 86400;
+
+    private static final byte[] LONG_MIN = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] ZERO = "0.0".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] NEGATIVE_ZERO = "-0.0".getBytes(StandardCharsets.US_ASCII);
+
+    /** Decimal exponents of the numbers written without the scientific notation, like Java does. */
+    private static final int PLAIN_MIN_EXPONENT = -3;
+
+    private static final int PLAIN_MAX_EXPONENT = 7;
+
+    /* Adapted from http://code.google.com/p/json-simple */
+    private static final byte[][] ESCAPES = new byte[0x80][];
+
+    /** Bytes of UTF-8 input which are copied as they are, the rest is looked at one by one. */
+    private static final boolean[] CLEAN = new boolean[0x100];
+
+    static {
+        for (int i = 0; i < 100; i++) {
+            DIGIT_PAIRS[2 * i] = (byte) ('0' + i / 10);
+            DIGIT_PAIRS[2 * i + 1] = (byte) ('0' + i % 10);
+        }
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+        // Reference: http://www.unicode.org/versions/Unicode5.1.0/
+        for (int ch = 0; ch <= 0x1F; ch++) {
+            ESCAPES[ch] = unicodeEscape(ch);
+        }
+        ESCAPES[0x7F] = unicodeEscape(0x7F);
+        ESCAPES['"'] = "\\\"".getBytes(StandardCharsets.US_ASCII);
+        ESCAPES['\\'] = "\\\\".getBytes(StandardCharsets.US_ASCII);
+        ESCAPES['\b'] = "\\b".getBytes(StandardCharsets.US_ASCII);
+        ESCAPES['\f'] = "\\f".getBytes(StandardCharsets.US_ASCII);
+        ESCAPES['\n'] = "\\n".getBytes(StandardCharsets.US_ASCII);
+        ESCAPES['\r'] = "\\r".getBytes(StandardCharsets.US_ASCII);
+        ESCAPES['\t'] = "\\t".getBytes(StandardCharsets.US_ASCII);
+        ESCAPES['/'] = "\\/".getBytes(StandardCharsets.US_ASCII);
+        for (int b = 0; b < CLEAN.length; b++) {
+            CLEAN[b] = b < 0x80 ? ESCAPES[b] == null : b != 0xC2 && b != 0xE2;
+        }
+    }
+
+    private byte[] bytes;
+
+    private int length;
+
+    private int limit = Integer.MAX_VALUE;
+
+    private boolean overflow;
+
+    private final ShortestDecimal shortest = new ShortestDecimal();
+
+    private JsonOutput scratch;
+
+    public JsonOutput() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public JsonOutput(int capacity) {
+        bytes = new byte[capacity];
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public void reset() {
+        length = 0;
+        overflow = false;
+    }
+
+    /**
+     * An empty second output owned by this one, to encode a value which is then written here as a
+     * json string.
+     */
+    JsonOutput scratch() {
+        if (scratch == null) {
+            scratch = new JsonOutput();
+        }
+        scratch.reset();
+        return scratch;
+    }
+
+    void truncate(int newLength) {
+        length = newLength;
+        overflow = false;
+    }
+
+    /**
+     * Caps the length of the output. A write crossing the limit is dropped, and every write after
+     * it too, so a writer can stop encoding a row as soon as {@link #isOverflow()} turns true.
+     */
+    void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    boolean isOverflow() {
+        return overflow;
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    void write(int b) {
+        if (!ensureCapacity(1)) {
+            return;
+        }
+        bytes[length++] = (byte) b;
+    }
+
+    void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    void write(byte[] b, int offset, int count) {
+        if (!ensureCapacity(count)) {
+            return;
+        }
+        System.arraycopy(b, offset, bytes, length, count);
+        length += count;
+    }
+
+    void writeAscii(String string) {
+        int count = string.length();
+        if (!ensureCapacity(count)) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            bytes[length++] = (byte) string.charAt(i);
+        }
+    }
+
+    void writeNull() {
+        write(NULL);
+    }
+
+    void writeBoolean(boolean value) {
+        write(value ? TRUE : FALSE);
+    }
+
+    void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            // the only long without a positive counterpart
+            write(LONG_MIN);
+            return;
+        }
+        long absolute = Math.abs(value);
+        int count = digitCount(absolute);
+        if (!ensureCapacity(value < 0 ? count + 1 : count)) {
+            return;
+        } else if (value < 0) {
+            bytes[length++] = '-';
+        }
+        writeDigits(absolute, count);
+    }
+
+    /**
+     * Writes the shortest decimal which parses back to the value, laid out like
+     * {@link Double#toString(double)}, or null for NaN and infinities, which json has no numbers
+     * for.
+     */
+    void writeDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            writeNull();
+        } else if (value == 0) {
+            write(Double.doubleToRawLongBits(value) < 0 ? NEGATIVE_ZERO : ZERO);
+        } else {
+            shortest.convert(value);
+            writeShortest(value < 0);
+        }
+    }
+
+    /**
+     * Same as {@link #writeDouble(double)} for the shortest decimal of a float, e.g. 0.1 rather
+     * than the 0.10000000149011612 of the float widened to a double.
+     */
+    void writeFloat(float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            writeNull();
+        } else if (value == 0) {
+            write(Float.floatToRawIntBits(value) < 0 ? NEGATIVE_ZERO : ZERO);
+        } else {
+            shortest.convert(value);
+            writeShortest(value < 0);
+        }
+    }
+
+    private void writeShortest(boolean negative) {
+        int start = length;
+        if (!reserve(32)) {
+            return;
+        }
+        if (negative) {
+            bytes[length++] = '-';
+        }
+        long digits = shortest.getDigits();
+        int count = digitCount(digits);
+        // the exponent of the scientific notation, with one digit before the point
+        int exponent = shortest.getExponent() + count - 1;
+        if (exponent >= PLAIN_MIN_EXPONENT && exponent < PLAIN_MAX_EXPONENT) {
+            if (exponent < 0) {
+                bytes[length++] = '0';
+                bytes[length++] = '.';
+                for (int i = exponent + 1; i < 0; i++) {
+                    bytes[length++] = '0';
+                }
+                writeDigits(digits, count);
+            } else if (count <= exponent + 1) {
+                writeDigits(digits, count);
+                for (int i = count; i <= exponent; i++) {
+                    bytes[length++] = '0';
+                }
+                bytes[length++] = '.';
+                bytes[length++] = '0';
+            } else {
+                writeWithPoint(digits, count, exponent + 1);
+            }
+        } else {
+            if (count == 1) {
+                writeDigits(digits, 1);
+                bytes[length++] = '.';
+                bytes[length++] = '0';
+            } else {
+                writeWithPoint(digits, count, 1);
+            }
+            bytes[length++] = 'E';
+            if (exponent < 0) {
+                bytes[length++] = '-';
+                exponent = -exponent;
+            }
+            writeDigits(exponent, digitCount(exponent));
+        }
+        checkLimit(start);
+    }
+
+    /**
+     * Writes the digits with a decimal point after the first integerDigits of them, which have to
+     * be fewer than all.
+     */
+    private void writeWithPoint(long digits, int count, int integerDigits) {
+        int start = length;
+        length++;
+        writeDigits(digits, count);
+        System.arraycopy(bytes, start + 1, bytes, start, integerDigits);
+        bytes[start + integerDigits] = '.';
+    }
+
+    /**
+     * Writes a point in time, given in units of 10^-fractionDigits seconds since the epoch, as an
+     * ISO-8601 UTC timestamp string with that many digits of a second, e.g.
+     * {@code "2016-02-29T12:30:00.250Z"}.
+     */
+    void writeTimestamp(long value, int fractionDigits) {
+        int start = length;
+        if (!reserve(32 + fractionDigits)) {
+            return;
+        }
+        long seconds = Math.floorDiv(value, POWERS_OF_TEN[fractionDigits]);
+        int secondOfDay = (int) Math.floorMod(seconds, SECONDS_PER_DAY);
+        bytes[length++] = '"';
+        writeCivilDate(Math.floorDiv(seconds, SECONDS_PER_DAY));
+        bytes[length++] = 'T';
+        writeDigits(secondOfDay / 3600, 2);
+        bytes[length++] = ':';
+        writeDigits(secondOfDay / 60 % 60, 2);
+        bytes[length++] = ':';
+        writeDigits(secondOfDay % 60, 2);
+        if (fractionDigits > 0) {
+            bytes[length++] = '.';
+            writeDigits(Math.floorMod(value, POWERS_OF_TEN[fractionDigits]), fractionDigits);
+        }
+        bytes[length++] = 'Z';
+        bytes[length++] = '"';
+        checkLimit(start);
+    }
+
+    /**
+     * Writes days since the epoch as an ISO-8601 date string, e.g. {@code "2016-02-29"}.
+     */
+    void writeDate(int days) {
+        int start = length;
+        if (!reserve(20)) {
+            return;
+        }
+        bytes[length++] = '"';
+        writeCivilDate(days);
+        bytes[length++] = '"';
+        checkLimit(start);
+    }
+
+    /**
+     * Writes a decimal given as the big-endian two's complement bytes of its unscaled value as a
+     * plain decimal string, e.g. {@code "-12.50"} for the unscaled value -1250 and scale 2.
+     */
+    void writeDecimal(byte[] b, int offset, int count, int scale) {
+        if (count > 8 || count == 8 && b[offset] == (byte) 0x80) {
+            // beyond a long, or its minimum which has no positive counterpart
+            byte[] unscaled = Arrays.copyOfRange(b, offset, offset + count);
+            write('"');
+            writeAscii(new BigDecimal(new BigInteger(unscaled), scale).toPlainString());
+            write('"');
+            return;
+        }
+        long value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            value = value << 8 | (b[i] & 0xFF);
+        }
+        if (count > 0 && count < 8) {
+            // sign extension
+            value = value << (64 - 8 * count) >> (64 - 8 * count);
+        }
+        int start = length;
+        if (!reserve(scale + 24)) {
+            return;
+        }
+        bytes[length++] = '"';
+        if (value < 0) {
+            bytes[length++] = '-';
+            value = -value;
+        }
+        if (scale == 0) {
+            writeDigits(value, digitCount(value));
+        } else if (scale < POWERS_OF_TEN.length) {
+            long integer = value / POWERS_OF_TEN[scale];
+            writeDigits(integer, digitCount(integer));
+            bytes[length++] = '.';
+            writeDigits(value % POWERS_OF_TEN[scale], scale);
+        } else {
+            // every long is below 10^19, the digits are all in the fraction
+            bytes[length++] = '0';
+            bytes[length++] = '.';
+            writeDigits(value, scale);
+        }
+        bytes[length++] = '"';
+        checkLimit(start);
+    }
+
+    /**
+     * Writes the proleptic Gregorian date of the epoch day with Howard Hinnant's civil_from_days
+     * algorithm. The capacity has to be reserved by the caller.
+     */
+    private void writeCivilDate(long epochDay) {
+        // shifted to 0000-03-01, so that the leap day is the last day of a year
+        long shifted = epochDay + 719468;
+        long era = Math.floorDiv(shifted, 146097);
+        long dayOfEra = shifted - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long marchMonth = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * marchMonth + 2) / 5 + 1);
+        int month = (int) (marchMonth < 10 ? marchMonth + 3 : marchMonth - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0) {
+            bytes[length++] = '-';
+            year = -year;
+        }
+        writeDigits(year, Math.max(4, digitCount(year)));
+        bytes[length++] = '-';
+        writeDigits(month, 2);
+        bytes[length++] = '-';
+        writeDigits(day, 2);
+    }
+
+    /**
+     * Writes the non-negative value as exactly the given number of digits, padded with leading
+     * zeros, two digits at a time. The capacity has to be reserved by the caller.
+     */
+    private void writeDigits(long value, int digits) {
+        int position = length + digits;
+        length = position;
+        for (; digits >= 2; digits -= 2) {
+            int pair = (int) (value % 100) << 1;
+            value /= 100;
+            bytes[--position] = DIGIT_PAIRS[pair + 1];
+            bytes[--position] = DIGIT_PAIRS[pair];
+        }
+        if (digits == 1) {
+            bytes[--position] = (byte) ('0' + value % 10);
+        }
+    }
+
+    /**
+     * Number of decimal digits of the non-negative value, one for zero.
+     */
+    private static int digitCount(long value) {
+        // the bit length gives the digits, or one digit too few; 1233 / 4096 is close to log10(2)
+        int digits = (64 - Long.numberOfLeadingZeros(value)) * 1233 >>> 12;
+        return digits < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[digits] ? digits + 1 : Math.max(digits, 1);
+    }
+
+    /**
+     * Writes bytes as a base64 string, the encoding Big Query expects for BYTES columns.
+     */
+    void writeBytes(byte[] b, int offset, int count) {
+        if (!ensureCapacity((count + 2) / 3 * 4 + 2)) {
+            return;
+        }
+        byte[] out = bytes;
+        int position = length;
+        out[position++] = '"';
+        int end = offset + count - count % 3;
+        for (int i = offset; i < end; i += 3) {
+            int bits = (b[i] & 0xFF) << 16 | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF);
+            out[position++] = BASE64[bits >>> 18];
+            out[position++] = BASE64[(bits >>> 12) & 0x3F];
+            out[position++] = BASE64[(bits >>> 6) & 0x3F];
+            out[position++] = BASE64[bits & 0x3F];
+        }
+        if (count % 3 == 1) {
+            int bits = (b[end] & 0xFF) << 16;
+            out[position++] = BASE64[bits >>> 18];
+            out[position++] = BASE64[(bits >>> 12) & 0x3F];
+            out[position++] = '=';
+            out[position++] = '=';
+        } else if (count % 3 == 2) {
+            int bits = (b[end] & 0xFF) << 16 | (b[end + 1] & 0xFF) << 8;
+            out[position++] = BASE64[bits >>> 18];
+            out[position++] = BASE64[(bits >>> 12) & 0x3F];
+            out[position++] = BASE64[(bits >>> 6) & 0x3F];
+            out[position++] = '=';
+        }
+        out[position++] = '"';
+        length = position;
+    }
+
+    void writeString(CharSequence string) {
+        if (string instanceof Utf8) {
+            Utf8 utf8 = (Utf8) string;
+            writeString(utf8.getBytes(), 0, utf8.getByteLength());
+            return;
+        } else if (overflow) {
+            return;
+        }
+        write('"');
+        writeEscaped(string);
+        write('"');
+    }
+
+    /**
+     * Same as {@link #writeString(CharSequence)} for a string given as its UTF-8 bytes, e.g. the
+     * backing array of a {@link Utf8}, without decoding it to chars.
+     */
+    void writeString(byte[] utf8, int offset, int count) {
+        if (overflow) {
+            return;
+        }
+        write('"');
+        int end = offset + count;
+        int run = offset;
+        for (int i = offset; i < end; i++) {
+            int b = utf8[i] & 0xFF;
+            if (CLEAN[b]) {
+                continue;
+            }
+            write(utf8, run, i - run);
+            if (b < 0x80) {
+                write(ESCAPES[b]);
+            } else if (b == 0xC2 && i + 1 < end && (utf8[i + 1] & 0xFF) <= 0x9F) {
+                // U+0080 - U+009F
+                writeUnicodeEscape(utf8[++i] & 0xFF);
+            } else if (b == 0xE2 && i + 2 < end && (utf8[i + 1] & 0xFF) <= 0x83) {
+                // U+2000 - U+20FF
+                writeUnicodeEscape(0x2000 | (utf8[i + 1] & 0x3F) << 6 | (utf8[i + 2] & 0x3F));
+                i += 2;
+            } else {
+                write(b);
+            }
+            if (overflow) {
+                return;
+            }
+            run = i + 1;
+        }
+        write(utf8, run, end - run);
+        write('"');
+    }
+
+    private void writeEscaped(CharSequence string) {
+        int count = string.length();
+        int run = 0;
+        for (int i = 0; i < count; i++) {
+            char ch = string.charAt(i);
+            if (ch < 0x80 && ESCAPES[ch] == null) {
+                continue;
+            }
+            writeAsciiRun(string, run, i);
+            if (ch < 0x80) {
+                write(ESCAPES[ch]);
+            } else if ((ch >= '\u0080' && ch <= '\u009F') || (ch >= '\u2000' && ch <= '\u20FF')) {
+                writeUnicodeEscape(ch);
+            } else if (Character.isHighSurrogate(ch) && i + 1 < count && Character.isLowSurrogate(string.charAt(i + 1))) {
+                writeUtf8(Character.toCodePoint(ch, string.charAt(++i)));
+            } else if (Character.isSurrogate(ch)) {
+                write('?');
+            } else {
+                writeUtf8(ch);
+            }
+            if (overflow) {
+                return;
+            }
+            run = i + 1;
+        }
+        writeAsciiRun(string, run, count);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void writeAsciiRun(CharSequence string, int start, int end) {
+        int count = end - start;
+        if (count == 0) {
+            return;
+        }
+        if (!ensureCapacity(count)) {
+            return;
+        }
+        if (string instanceof String) {
+            // every char of the run is ASCII, so keeping the low byte of each is exact
+            ((String) string).getBytes(start, end, bytes, length);
+        } else {
+            for (int i = start; i < end; i++) {
+                bytes[length + i - start] = (byte) string.charAt(i);
+            }
+        }
+        length += count;
+    }
+
+    private void writeUnicodeEscape(int ch) {
+        if (!ensureCapacity(6)) {
+            return;
+        }
+        bytes[length++] = '\\';
+        bytes[length++] = 'u';
+        bytes[length++] = HEX[(ch >> 12) & 0xF];
+        bytes[length++] = HEX[(ch >> 8) & 0xF];
+        bytes[length++] = HEX[(ch >> 4) & 0xF];
+        bytes[length++] = HEX[ch & 0xF];
+    }
+
+    private static byte[] unicodeEscape(int ch) {
+        return new byte[] {'\\', 'u', HEX[(ch >> 12) & 0xF], HEX[(ch >> 8) & 0xF], HEX[(ch >> 4) & 0xF], HEX[ch & 0xF]};
+    }
+
+    void writeUtf8(int codePoint) {
+        if (!ensureCapacity(codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4)) {
+            return;
+        }
+        if (codePoint < 0x80) {
+            bytes[length++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            bytes[length++] = (byte) (0xC0 | (codePoint >> 6));
+            bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            bytes[length++] = (byte) (0xE0 | (codePoint >> 12));
+            bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+            bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+    }
+
+    /**
+     * Makes room for a write of at most count bytes whose exact length is known only once it is
+     * written, which {@link #checkLimit(int)} then takes back if it crossed the limit.
+     */
+    private boolean reserve(int count) {
+        if (overflow) {
+            return false;
+        }
+        if (length + count > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, length + count));
+        }
+        return true;
+    }
+
+    private void checkLimit(int start) {
+        if (length > limit) {
+            length = start;
+            overflow = true;
+        }
+    }
+
+    private boolean ensureCapacity(int count) {
+        if (overflow || count > limit - length) {
+            overflow = true;
+            return false;
+        }
+        if (length + count > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, length + count));
+        }
+        return true;
+    }
+}
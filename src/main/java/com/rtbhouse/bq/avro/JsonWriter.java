@@ -0,0 +1,6 @@
+package com.rtbhouse.bq.avro;
+
+interface JsonWriter {
+
+    void write(Object datum, JsonOutput out);
+}
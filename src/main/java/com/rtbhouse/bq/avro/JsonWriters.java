@@ -0,0 +1,425 @@
+package com.rtbhouse.bq.avro;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericFixed;
+import org.apache.avro.generic.IndexedRecord;
+
+/**
+ * Compiles an Avro schema into a tree of writers, so that the per-row work is limited to
+ * running the fixed writers instead of inspecting the type of every datum.
+ */
+final class JsonWriters {
+
+    private static final byte[] SEPARATOR = ascii(", ");
+
+    private static final byte[] MAP_KEY = ascii("{\"key\": ");
+
+    private static final byte[] MAP_VALUE = ascii(", \"value\": ");
+
+    private static final byte[] KEY_SEPARATOR = ascii(": ");
+
+    private static final JsonWriter STRING = (datum, out) -> out.writeString((CharSequence) datum);
+
+    private static final JsonWriter ENUM = (datum, out) -> out.writeString(datum.toString());
+
+    private static final JsonWriter LONG = (datum, out) -> out.writeLong(((Number) datum).longValue());
+
+    private static final JsonWriter DOUBLE = (datum, out) -> out.writeDouble((Double) datum);
+
+    private static final JsonWriter FLOAT = (datum, out) -> out.writeFloat((Float) datum);
+
+    private static final JsonWriter BOOLEAN = (datum, out) -> out.writeBoolean((Boolean) datum);
+
+    private static final JsonWriter BYTES = (datum, out) -> {
+        ByteBuffer bytes = (ByteBuffer) datum;
+        if (bytes.hasArray()) {
+            out.writeBytes(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        } else {
+            byte[] copy = new byte[bytes.remaining()];
+            bytes.duplicate().get(copy);
+            out.writeBytes(copy, 0, copy.length);
+        }
+    };
+
+    private static final JsonWriter FIXED = (datum, out) -> {
+        byte[] fixed = ((GenericFixed) datum).bytes();
+        out.writeBytes(fixed, 0, fixed.length);
+    };
+
+    private static final JsonWriter NULL = (datum, out) -> out.writeNull();
+
+    private static final JsonWriter DATE = (datum, out) -> out.writeDate((Integer) datum);
+
+    private static final JsonWriter TIMESTAMP_MILLIS = (datum, out) -> out.writeTimestamp((Long) datum, 3);
+
+    private static final JsonWriter TIMESTAMP_MICROS = (datum, out) -> out.writeTimestamp((Long) datum, 6);
+
+    private JsonWriters() {
+    }
+
+    static JsonWriter compile(Schema schema) {
+        return compile(schema, new IdentityHashMap<>(), MapEncoding.RECORDS);
+    }
+
+    static JsonWriter compile(Schema schema, Set<String> columns) {
+        return compile(schema, columns, MapEncoding.RECORDS);
+    }
+
+    /**
+     * Compiles a writer of the record schema which writes only the given top-level columns, or
+     * all of them for null columns, and maps in the given encoding.
+     */
+    static JsonWriter compile(Schema schema, Set<String> columns, MapEncoding maps) {
+        if (columns == null) {
+            return compile(schema, new IdentityHashMap<>(), maps);
+        }
+        List<Schema.Field> fields = new ArrayList<>();
+        for (Schema.Field field : schema.getFields()) {
+            if (columns.contains(field.name())) {
+                fields.add(field);
+            }
+        }
+        // not registered, a nested occurrence of a recursive root record keeps all its fields
+        RecordWriter root = new RecordWriter(fields.size());
+        root.compileFields(fields, new IdentityHashMap<>(), maps);
+        return root;
+    }
+
+    /**
+     * Writes a record with its compiled writer, adding the encoded size of every field to the
+     * entry of its position in fieldBytes.
+     */
+    static void writeFields(JsonWriter writer, Object datum, JsonOutput out, long[] fieldBytes) {
+        ((RecordWriter) writer).write(datum, out, fieldBytes);
+    }
+
+    private static JsonWriter compile(Schema schema, Map<Schema, RecordWriter> records, MapEncoding maps) {
+        LogicalType logicalType = LogicalType.of(schema);
+        if (logicalType != null) {
+            return compileLogical(schema, logicalType);
+        }
+        switch (schema.getType()) {
+            case RECORD:
+                RecordWriter record = records.get(schema);
+                if (record == null) {
+                    // registered before its fields are compiled, so recursive schemas resolve to it
+                    record = new RecordWriter(schema.getFields().size());
+                    records.put(schema, record);
+                    record.compileFields(schema.getFields(), records, maps);
+                }
+                return record;
+            case ARRAY:
+                return new ArrayWriter(compile(schema.getElementType(), records, maps));
+            case MAP:
+                return compileMap(schema, records, maps);
+            case UNION:
+                return compileUnion(schema, records, maps);
+            case STRING:
+                return STRING;
+            case ENUM:
+                return ENUM;
+            case DOUBLE:
+                return DOUBLE;
+            case FLOAT:
+                return FLOAT;
+            case BYTES:
+                return BYTES;
+            case INT:
+            case LONG:
+                return LONG;
+            case BOOLEAN:
+                return BOOLEAN;
+            case FIXED:
+                return FIXED;
+            default:
+                return NULL;
+        }
+    }
+
+    private static JsonWriter compileLogical(Schema schema, LogicalType logicalType) {
+        switch (logicalType) {
+            case DATE:
+                return DATE;
+            case TIMESTAMP_MILLIS:
+                return TIMESTAMP_MILLIS;
+            case TIMESTAMP_MICROS:
+                return TIMESTAMP_MICROS;
+            default:
+                return new DecimalWriter(LogicalType.scale(schema));
+        }
+    }
+
+    private static JsonWriter compileMap(Schema schema, Map<Schema, RecordWriter> records, MapEncoding maps) {
+        switch (maps) {
+            case JSON:
+                // records in the string are compiled anew, their maps are plain objects
+                return new JsonStringWriter(new ObjectWriter(compile(schema.getValueType(), new IdentityHashMap<>(), MapEncoding.OBJECT)));
+            case OBJECT:
+                return new ObjectWriter(compile(schema.getValueType(), records, maps));
+            default:
+                return new MapWriter(compile(schema.getValueType(), records, maps));
+        }
+    }
+
+    private static JsonWriter compileUnion(Schema schema, Map<Schema, RecordWriter> records, MapEncoding maps) {
+        List<Schema> types = schema.getTypes();
+        if (types.size() == 2 && types.get(0).getType().equals(Schema.Type.NULL)) {
+            return new NullableWriter(compile(types.get(1), records, maps));
+        } else if (types.size() == 2 && types.get(1).getType().equals(Schema.Type.NULL)) {
+            return new NullableWriter(compile(types.get(0), records, maps));
+        }
+        boolean branchRecord = SchemaConverter.isBranchRecord(schema);
+        JsonWriter[] branches = new JsonWriter[types.size()];
+        for (int i = 0; i < branches.length; i++) {
+            branches[i] = compile(types.get(i), records, maps);
+            if (branchRecord && !types.get(i).getType().equals(Schema.Type.NULL)) {
+                branches[i] = new BranchWriter(SchemaConverter.branchName(schema, types.get(i)), branches[i]);
+            }
+        }
+        return new UnionWriter(schema, branches);
+    }
+
+    private static final class RecordWriter implements JsonWriter {
+
+        private final int[] positions;
+
+        private final byte[][] prefixes;
+
+        private final JsonWriter[] writers;
+
+        private RecordWriter(int size) {
+            positions = new int[size];
+            prefixes = new byte[size][];
+            writers = new JsonWriter[size];
+        }
+
+        private void compileFields(List<Schema.Field> fields, Map<Schema, RecordWriter> records, MapEncoding maps) {
+            for (int i = 0; i < fields.size(); i++) {
+                Schema.Field field = fields.get(i);
+                JsonOutput prefix = new JsonOutput(field.name().length() + 4);
+                prefix.writeString(field.name());
+                prefix.writeAscii(": ");
+                positions[i] = field.pos();
+                prefixes[i] = Arrays.copyOf(prefix.getBytes(), prefix.getLength());
+                writers[i] = compile(field.schema(), records, maps);
+            }
+        }
+
+        @Override
+        public void write(Object datum, JsonOutput out) {
+            write(datum, out, null);
+        }
+
+        private void write(Object datum, JsonOutput out, long[] fieldBytes) {
+            IndexedRecord record = (IndexedRecord) datum;
+            out.write('{');
+            int count = 0;
+            for (int i = 0; i < positions.length; i++) {
+                Object field = record.get(positions[i]);
+                if (out.isOverflow()) {
+                    // the row is over the size limit and will be dropped, the rest is not needed
+                    return;
+                } else if (field == null) {
+                    continue;
+                } else if (count++ > 0) {
+                    out.write(SEPARATOR);
+                }
+                int fieldStart = out.getLength();
+                out.write(prefixes[i]);
+                writers[i].write(field, out);
+                if (fieldBytes != null) {
+                    fieldBytes[positions[i]] += out.getLength() - fieldStart;
+                }
+            }
+            out.write('}');
+        }
+    }
+
+    private static final class ArrayWriter implements JsonWriter {
+
+        private final JsonWriter element;
+
+        private ArrayWriter(JsonWriter element) {
+            this.element = element;
+        }
+
+        @Override
+        public void write(Object datum, JsonOutput out) {
+            out.write('[');
+            int count = 0;
+            for (Object value : (Collection<?>) datum) {
+                if (out.isOverflow()) {
+                    return;
+                } else if (count++ > 0) {
+                    out.write(SEPARATOR);
+                }
+                element.write(value, out);
+            }
+            out.write(']');
+        }
+    }
+
+    private static final class MapWriter implements JsonWriter {
+
+        private final JsonWriter value;
+
+        private MapWriter(JsonWriter value) {
+            this.value = value;
+        }
+
+        @Override
+        public void write(Object datum, JsonOutput out) {
+            out.write('[');
+            int count = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) datum).entrySet()) {
+                if (out.isOverflow()) {
+                    return;
+                } else if (count++ > 0) {
+                    out.write(SEPARATOR);
+                }
+                out.write(MAP_KEY);
+                out.writeString((CharSequence) entry.getKey());
+                out.write(MAP_VALUE);
+                value.write(entry.getValue(), out);
+                out.write('}');
+            }
+            out.write(']');
+        }
+    }
+
+    private static final class ObjectWriter implements JsonWriter {
+
+        private final JsonWriter value;
+
+        private ObjectWriter(JsonWriter value) {
+            this.value = value;
+        }
+
+        @Override
+        public void write(Object datum, JsonOutput out) {
+            out.write('{');
+            int count = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) datum).entrySet()) {
+                if (out.isOverflow()) {
+                    return;
+                } else if (count++ > 0) {
+                    out.write(SEPARATOR);
+                }
+                out.writeString((CharSequence) entry.getKey());
+                out.write(KEY_SEPARATOR);
+                value.write(entry.getValue(), out);
+            }
+            out.write('}');
+        }
+    }
+
+    private static final class JsonStringWriter implements JsonWriter {
+
+        private final JsonWriter value;
+
+        private JsonStringWriter(JsonWriter value) {
+            this.value = value;
+        }
+
+        @Override
+        public void write(Object datum, JsonOutput out) {
+            JsonOutput json = out.scratch();
+            value.write(datum, json);
+            out.writeString(json.getBytes(), 0, json.getLength());
+        }
+    }
+
+    private static final class BranchWriter implements JsonWriter {
+
+        private final byte[] prefix;
+
+        private final JsonWriter value;
+
+        private BranchWriter(String name, JsonWriter value) {
+            this.prefix = ascii("{\"" + name + "\": ");
+            this.value = value;
+        }
+
+        @Override
+        public void write(Object datum, JsonOutput out) {
+            out.write(prefix);
+            value.write(datum, out);
+            out.write('}');
+        }
+    }
+
+    private static final class DecimalWriter implements JsonWriter {
+
+        private final int scale;
+
+        private DecimalWriter(int scale) {
+            this.scale = scale;
+        }
+
+        @Override
+        public void write(Object datum, JsonOutput out) {
+            if (datum instanceof GenericFixed) {
+                byte[] fixed = ((GenericFixed) datum).bytes();
+                out.writeDecimal(fixed, 0, fixed.length, scale);
+                return;
+            }
+            ByteBuffer bytes = (ByteBuffer) datum;
+            if (bytes.hasArray()) {
+                out.writeDecimal(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), scale);
+            } else {
+                byte[] copy = new byte[bytes.remaining()];
+                bytes.duplicate().get(copy);
+                out.writeDecimal(copy, 0, copy.length, scale);
+            }
+        }
+    }
+
+    private static final class NullableWriter implements JsonWriter {
+
+        private final JsonWriter value;
+
+        private NullableWriter(JsonWriter value) {
+            this.value = value;
+        }
+
+        @Override
+        public void write(Object datum, JsonOutput out) {
+            if (datum == null) {
+                out.writeNull();
+            } else {
+                value.write(datum, out);
+            }
+        }
+    }
+
+    private static final class UnionWriter implements JsonWriter {
+
+        private final Schema schema;
+
+        private final JsonWriter[] branches;
+
+        private UnionWriter(Schema schema, JsonWriter[] branches) {
+            this.schema = schema;
+            this.branches = branches;
+        }
+
+        @Override
+        public void write(Object datum, JsonOutput out) {
+            branches[GenericData.get().resolveUnion(schema, datum)].write(datum, out);
+        }
+    }
+
+    private static byte[] ascii(String string) {
+        return string.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,331 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.SeekableInput;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.io.Charsets;
+import org.apache.hadoop.conf.Configuration;
+
+import com.google.common.io.Files;
+
+/**
+ * Converts Avro files on the local filesystem to json without a Hadoop job. Input files are cut
+ * into splits of at most {@code -m} MB, and small enough to give every thread one, which are read
+ * through positional {@link FileChannel} reads and transcoded in parallel into one part file each.
+ * Splits in which no Avro block starts get no part file.
+ */
+public class LocalAvroToJson {
+
+    // below a typical Avro block, a split may hold no block to convert at all
+    static final long MIN_SPLIT_SIZE = 64 * 1024L;
+
+    // chunks in flight per part file, every thread writes one of them
+    private static final int COMPRESSION_MAX_PENDING = 2;
+
+    private final AtomicLong rows = new AtomicLong();
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        System.exit(new LocalAvroToJson().run(args));
+    }
+
+    public int run(String[] args) throws Exception {
+        parseConfig(args);
+        Configuration conf = new Configuration();
+        Schema schema = SchemaConverter.readSchema(avroschema, conf);
+        MapEncoding mapEncoding = MapEncoding.parse(maps);
+        String convert = new SchemaConverter(mapEncoding).convert(schema);
+        Files.write(convert, new File(AvroToJson.SCHEMA_BQSC_FILE), Charsets.UTF_8);
+
+        File output = new File(outputDirectory);
+        if (output.exists()) {
+            throw new IOException("Output directory " + output + " already exists");
+        }
+        if (!output.mkdirs()) {
+            throw new IOException("Cannot create output directory " + output);
+        }
+
+        NdjsonOutputFormat.Compression outputCompression = NdjsonOutputFormat.Compression.parse(compression);
+        // the splits converted at the same time share the parallel gzip threads
+        ExecutorService compressionPool = outputCompression.isParallel() ? ParallelGzipOutputStream.newPool(threads) : null;
+        List<Callable<String>> tasks = new ArrayList<>();
+        List<File> inputs = listInputs();
+        long splitSize = splitSize(inputs);
+        for (File input : inputs) {
+            for (long start = 0; start < input.length(); start += splitSize) {
+                long end = Math.min(start + splitSize, input.length());
+                File part = new File(output, String.format("part-m-%05d%s", tasks.size(), outputCompression.getExtension()));
+                long splitStart = start;
+                tasks.add(() -> convert(input, splitStart, end, schema, mapEncoding, part, outputCompression, compressionPool));
+            }
+        }
+
+        StringBuilder manifest = new StringBuilder();
+        int parts = 0;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            for (Future<String> task : pool.invokeAll(tasks)) {
+                String entry = task.get();
+                if (entry != null) {
+                    manifest.append(entry);
+                    parts++;
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+            if (compressionPool != null) {
+                compressionPool.shutdownNow();
+            }
+        }
+        Files.write(manifest, new File(output, NdjsonOutputFormat.MANIFEST), Charsets.UTF_8);
+        System.out.println(String.format("Written %s records to %s parts; skipped records too big: %s",
+            rows.get(), parts, skipped.get()));
+        return 0;
+    }
+
+    /**
+     * The -m split size, lowered to give every thread a split of the input.
+     */
+    private long splitSize(List<File> inputs) {
+        long inputBytes = 0;
+        for (File input : inputs) {
+            inputBytes += input.length();
+        }
+        long perThread = (inputBytes + threads - 1) / threads;
+        return Math.min(maxMapSizeMb * 1024 * 1024L, Math.max(MIN_SPLIT_SIZE, perThread));
+    }
+
+    /**
+     * Converts the split into the part file and returns its manifest entry, or null when no block
+     * starts in the split and no part file is written.
+     */
+    private String convert(File input, long start, long end, Schema schema, MapEncoding mapEncoding, File part,
+        NdjsonOutputFormat.Compression outputCompression, ExecutorService compressionPool) throws IOException {
+        AvroBlockConverter converter = new AvroBlockConverter(maxRowJsonSize, schema, null, mapEncoding);
+        JsonOutput output = new JsonOutput();
+        long partRows = 0;
+        try (FileChannelInput in = new FileChannelInput(input); AvroBlockReader reader = new AvroBlockReader(in, start, end)) {
+            ByteBuffer block = reader.nextBlockInSplit();
+            if (block == null) {
+                return null;
+            }
+            try (FileOutputStream file = new FileOutputStream(part);
+                OutputStream out = outputCompression.wrap(file, compressionPool, COMPRESSION_MAX_PENDING)) {
+                for (; block != null; block = reader.nextBlockInSplit()) {
+                    output.reset();
+                    int blockSkipped = converter.convert(reader.getSchema(), block, reader.getBlockCount(), output);
+                    out.write(output.getBytes(), 0, output.getLength());
+                    partRows += reader.getBlockCount() - blockSkipped;
+                    skipped.addAndGet(blockSkipped);
+                }
+            }
+        }
+        rows.addAndGet(partRows);
+        return NdjsonOutputFormat.manifestEntry(part.getName(), partRows, part.length());
+    }
+
+    /**
+     * Reads a file with positional reads, which leave the channel position alone, so splits of
+     * the same file do not contend for it.
+     */
+    private static final class FileChannelInput implements SeekableInput {
+
+        private final FileChannel channel;
+
+        private long position;
+
+        private FileChannelInput(File file) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        @Override
+        public void seek(long p) {
+            position = p;
+        }
+
+        @Override
+        public long tell() {
+            return position;
+        }
+
+        @Override
+        public long length() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private List<File> listInputs() throws IOException {
+        List<File> inputs = new ArrayList<>();
+        for (String inputEntry : file.split(",")) {
+            File input = new File(inputEntry);
+            if (!input.exists()) {
+                throw new IOException("Input " + input + " does not exist");
+            }
+            listInputs(input, inputs);
+        }
+        return inputs;
+    }
+
+    private static void listInputs(File input, List<File> inputs) {
+        if (input.isDirectory()) {
+            File[] children = input.listFiles((dir, name) -> !name.startsWith("_") && !name.startsWith("."));
+            Arrays.sort(children);
+            for (File child : children) {
+                listInputs(child, inputs);
+            }
+        } else if (input.length() > 0) {
+            inputs.add(input);
+        }
+    }
+
+    String avroschema;
+
+    String file;
+
+    String outputDirectory;
+
+    int maxMapSizeMb;
+
+    int maxRowJsonSize;
+
+    int threads;
+
+    String compression;
+
+    String maps;
+
+    private void parseConfig(String[] args) throws ParseException {
+        Options options = new Options();
+        options.addOption("s", "avroschema", true, "Avro schema file to be processed.");
+        options.addOption("f", "file", true, "Avro file or directory to be processed.");
+        options.addOption("o", "output", true, "Output directory.");
+        options.addOption("m", "mapsize", true, "Max split size in MB, lowered to give every thread a split, each written to its own part file.");
+        options.addOption("r", "rowsize", true, "Max json row size bytes.");
+        options.addOption("p", "threads", true, "Conversion threads, all cores by default.");
+        options.addOption("c", "compression", true, "Output compression: none, gzip[:level] or pgzip[:level] (parallel gzip).");
+        options.addOption("k", "maps", true, "Map encoding: records (repeated key and value records, the default) "
+            + "or json (a json object in a STRING column).");
+        options.addOption("u", "usage", false, "Print usage.");
+
+        CommandLineParser parser = new PosixParser();
+        CommandLine cl = parser.parse(options, args, false);
+
+        if (args.length == 0 || cl.hasOption("u")) {
+            logUsage(options);
+            throw new ParseException("u");
+        }
+
+        if (cl.hasOption("s")) {
+            avroschema = cl.getOptionValue("s");
+        } else {
+            logUsage(options);
+            throw new ParseException("s");
+        }
+
+        if (cl.hasOption("f")) {
+            file = cl.getOptionValue("f");
+        } else {
+            logUsage(options);
+            throw new ParseException("f");
+        }
+
+        if (cl.hasOption("o")) {
+            outputDirectory = cl.getOptionValue("o");
+        } else {
+            logUsage(options);
+            throw new ParseException("o");
+        }
+
+        if (cl.hasOption("m")) {
+            maxMapSizeMb = Integer.parseInt(cl.getOptionValue("m"));
+        } else {
+            maxMapSizeMb = 512;
+        }
+
+        if (cl.hasOption("r")) {
+            maxRowJsonSize = Integer.parseInt(cl.getOptionValue("r"));
+        } else {
+            maxRowJsonSize = AvroToJson.MAXSIZE;
+        }
+
+        if (cl.hasOption("p")) {
+            threads = Integer.parseInt(cl.getOptionValue("p"));
+        } else {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        if (cl.hasOption("c")) {
+            compression = cl.getOptionValue("c");
+            try {
+                NdjsonOutputFormat.Compression.parse(compression);
+            } catch (IllegalArgumentException e) {
+                logUsage(options);
+                throw new ParseException("c");
+            }
+        } else {
+            compression = NdjsonOutputFormat.DEFAULT_COMPRESSION;
+        }
+
+        if (cl.hasOption("k")) {
+            maps = cl.getOptionValue("k");
+            try {
+                MapEncoding.parse(maps);
+            } catch (IllegalArgumentException e) {
+                logUsage(options);
+                throw new ParseException("k");
+            }
+        } else {
+            maps = "records";
+        }
+    }
+
+    private static void logUsage(Options options) {
+        HelpFormatter formatter = new HelpFormatter();
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        String syntax = LocalAvroToJson.class.getName() + " [<options>]";
+        formatter.printHelp(pw, 100, syntax, "options:", options, 0, 2, null);
+        System.out.println(sw.toString());
+    }
+}
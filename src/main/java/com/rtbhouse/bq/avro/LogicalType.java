@@ -0,0 +1,75 @@
+package com.rtbhouse.bq.avro;
+
+import org.apache.avro.Schema;
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * Avro logical types with a BigQuery counterpart. This Avro version does not model logical types,
+ * so they are read from the {@code logicalType} property, and like the Avro spec requires, one on
+ * a type it does not apply to is ignored.
+ */
+enum LogicalType {
+
+    DATE("date", "DATE"),
+    TIMESTAMP_MILLIS("timestamp-millis", "TIMESTAMP"),
+    TIMESTAMP_MICROS("timestamp-micros", "TIMESTAMP"),
+    DECIMAL("decimal", "NUMERIC");
+
+    // NUMERIC holds 29 integer and 9 fraction digits, BIGNUMERIC 38 and 38
+    private static final int NUMERIC_SCALE = 9;
+
+    private static final int NUMERIC_INTEGER_DIGITS = 29;
+
+    private final String name;
+
+    private final String bigQueryType;
+
+    LogicalType(String name, String bigQueryType) {
+        this.name = name;
+        this.bigQueryType = bigQueryType;
+    }
+
+    /**
+     * The logical type of the schema, or null if it has none.
+     */
+    static LogicalType of(Schema schema) {
+        String name = schema.getProp("logicalType");
+        if (name == null) {
+            return null;
+        }
+        switch (schema.getType()) {
+            case INT:
+                return DATE.name.equals(name) ? DATE : null;
+            case LONG:
+                return TIMESTAMP_MILLIS.name.equals(name) ? TIMESTAMP_MILLIS : TIMESTAMP_MICROS.name.equals(name) ? TIMESTAMP_MICROS : null;
+            case BYTES:
+            case FIXED:
+                return DECIMAL.name.equals(name) && precision(schema) > 0 && scale(schema) >= 0 && scale(schema) <= precision(schema) ? DECIMAL : null;
+            default:
+                return null;
+        }
+    }
+
+    static int precision(Schema schema) {
+        return intProp(schema, "precision", 0);
+    }
+
+    static int scale(Schema schema) {
+        return intProp(schema, "scale", 0);
+    }
+
+    String bigQueryType(Schema schema) {
+        if (this == DECIMAL && (scale(schema) > NUMERIC_SCALE || precision(schema) - scale(schema) > NUMERIC_INTEGER_DIGITS)) {
+            return "BIGNUMERIC";
+        }
+        return bigQueryType;
+    }
+
+    private static int intProp(Schema schema, String name, int defaultValue) {
+        JsonNode value = schema.getJsonProp(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return value.isInt() ? value.getIntValue() : -1;
+    }
+}
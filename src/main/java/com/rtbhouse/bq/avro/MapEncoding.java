@@ -0,0 +1,31 @@
+package com.rtbhouse.bq.avro;
+
+/**
+ * How Avro maps are written. As records, the default, a map is a repeated RECORD of key and
+ * value. As json it is a STRING column holding the map as a json object, which is smaller and
+ * takes any keys, at the cost of querying it with JSON functions.
+ */
+enum MapEncoding {
+
+    RECORDS,
+    JSON,
+    /** A plain json object, for maps inside the string of a JSON encoded map, never a column. */
+    OBJECT;
+
+    /**
+     * Parses records or json, returning records for null.
+     */
+    static MapEncoding parse(String encoding) {
+        if (encoding == null) {
+            return RECORDS;
+        }
+        switch (encoding.trim().toLowerCase()) {
+            case "records":
+                return RECORDS;
+            case "json":
+                return JSON;
+            default:
+                throw new IllegalArgumentException("Unknown map encoding: " + encoding);
+        }
+    }
+}
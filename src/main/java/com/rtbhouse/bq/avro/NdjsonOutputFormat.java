@@ -0,0 +1,418 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+/**
+ * Writes json rows as newline delimited files, compressed as configured by {@link #COMPRESSION}
+ * and rolled over to a new part file once {@link #PART_MAXSIZE} bytes of json or, for compressed
+ * output, {@link #PART_MAX_COMPRESSED_SIZE} bytes of file have been written. Every part file is
+ * listed with its row count and size in the {@value #MANIFEST} file of the output directory.
+ * Rows can also be written to partition subdirectories through {@link #partitionWriters}.
+ */
+public class NdjsonOutputFormat extends FileOutputFormat<Text, NullWritable> {
+
+    public static final String COMPRESSION = "json.compression";
+
+    public static final String COMPRESSION_THREADS = "json.compression.threads";
+
+    public static final String PART_MAXSIZE = "json.part.maxsize";
+
+    public static final String PART_MAX_COMPRESSED_SIZE = "json.part.maxcompressedsize";
+
+    // BigQuery loads compressed json files of up to 4 GB
+    public static final long DEFAULT_PART_MAX_COMPRESSED_SIZE = 3584 * 1024 * 1024L;
+
+    public static final String PARTITION_MAX_OPEN = "json.partition.maxopen";
+
+    // every open writer holds its compressor and file buffers
+    public static final int DEFAULT_PARTITION_MAX_OPEN = 32;
+
+    // chunks in flight per parallel gzip partition, so the one mapper thread writing them never waits for its own
+    // last chunk and the partitions together keep the pool busy
+    static final int PARTITION_MAX_PENDING = 2;
+
+    public static final String MANIFEST = "_manifest";
+
+    static final String PARTITION_GROUP = "Json partitions";
+
+    public static final String DEFAULT_COMPRESSION = "gzip";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private FileOutputCommitter committer;
+
+    @Override
+    public RecordWriter<Text, NullWritable> getRecordWriter(TaskAttemptContext context) {
+        return new RollingRecordWriter(context);
+    }
+
+    @Override
+    public synchronized OutputCommitter getOutputCommitter(TaskAttemptContext context) throws IOException {
+        if (committer == null) {
+            committer = new ManifestCommitter(getOutputPath(context), context);
+        }
+        return committer;
+    }
+
+    /**
+     * Writers of the partitions of a task, see {@link PartitionWriters}.
+     */
+    PartitionWriters partitionWriters(TaskAttemptContext context) {
+        return new PartitionWriters(context);
+    }
+
+    /**
+     * A manifest line of a part file.
+     */
+    static String manifestEntry(String file, long rows, long bytes) {
+        return String.format("{\"file\": \"%s\", \"rows\": %s, \"bytes\": %s}\n", file, rows, bytes);
+    }
+
+    private class RollingRecordWriter extends RecordWriter<Text, NullWritable> {
+
+        private final TaskAttemptContext context;
+
+        private final Compression compression;
+
+        private final long partMaxSize;
+
+        private final long partMaxCompressedSize;
+
+        private final String directory;
+
+        private final StringBuilder manifest;
+
+        private final ExecutorService pool;
+
+        private Path file;
+
+        private FSDataOutputStream fileOut;
+
+        private OutputStream out;
+
+        private long partSize;
+
+        private long partRows;
+
+        private int parts;
+
+        private RollingRecordWriter(TaskAttemptContext context) {
+            this(context, null, 0, new StringBuilder(), null);
+        }
+
+        /**
+         * Writer of part files in the directory of the work path, or in the work path itself for
+         * a null directory, numbered from the given part on and listed in the given manifest.
+         * Parallel gzip parts compress on the given pool, or on one of their own for a null pool.
+         */
+        private RollingRecordWriter(TaskAttemptContext context, String directory, int parts, StringBuilder manifest, ExecutorService pool) {
+            Configuration conf = context.getConfiguration();
+            this.context = context;
+            this.directory = directory;
+            this.parts = parts;
+            this.manifest = manifest;
+            this.pool = pool;
+            this.compression = Compression.parse(conf.get(COMPRESSION, DEFAULT_COMPRESSION));
+            long maxSize = conf.getLong(PART_MAXSIZE, 0);
+            this.partMaxSize = maxSize > 0 ? maxSize : Long.MAX_VALUE;
+            long maxCompressedSize = conf.getLong(PART_MAX_COMPRESSED_SIZE, DEFAULT_PART_MAX_COMPRESSED_SIZE);
+            this.partMaxCompressedSize = maxCompressedSize > 0 && compression.isCompressed() ? maxCompressedSize : Long.MAX_VALUE;
+        }
+
+        @Override
+        public void write(Text json, NullWritable value) throws IOException {
+            // the file position lags behind by what the compressor buffers, a small part of the limit
+            if (out == null || partSize >= partMaxSize || fileOut.getPos() >= partMaxCompressedSize) {
+                roll();
+            }
+            out.write(json.getBytes(), 0, json.getLength());
+            out.write('\n');
+            partSize += json.getLength() + 1;
+            partRows += rows(json);
+        }
+
+        /**
+         * Json has no raw newlines, those in the text separate rows written in one chunk.
+         */
+        private long rows(Text json) {
+            byte[] bytes = json.getBytes();
+            long rows = 1;
+            for (int i = json.getLength() - 1; i >= 0; i--) {
+                if (bytes[i] == '\n') {
+                    rows++;
+                }
+            }
+            return rows;
+        }
+
+        @Override
+        public void close(TaskAttemptContext taskAttemptContext) throws IOException {
+            if (out != null) {
+                closePart();
+                writeManifest(context, manifest);
+            }
+        }
+
+        /**
+         * Closes the current part, if any, leaving the manifest to the caller.
+         */
+        private void finish() throws IOException {
+            if (out != null) {
+                closePart();
+                out = null;
+            }
+        }
+
+        private void roll() throws IOException {
+            if (out != null) {
+                closePart();
+            }
+            String extension = compression.getExtension();
+            if (parts > 0) {
+                extension = String.format("-%05d%s", parts, extension);
+            }
+            file = getDefaultWorkFile(context, extension);
+            if (directory != null) {
+                file = new Path(new Path(file.getParent(), directory), file.getName());
+            }
+            FileSystem fs = file.getFileSystem(context.getConfiguration());
+            fileOut = fs.create(file, false);
+            out = pool == null ? compression.wrap(fileOut, context.getConfiguration()) : compression.wrap(fileOut, pool, PARTITION_MAX_PENDING);
+            partSize = 0;
+            partRows = 0;
+            parts++;
+        }
+
+        private void closePart() throws IOException {
+            out.close();
+            String name = directory == null ? file.getName() : directory + Path.SEPARATOR + file.getName();
+            manifest.append(manifestEntry(name, partRows, fileOut.getPos()));
+        }
+    }
+
+    /**
+     * Writes the manifest piece of the task, merged into the job manifest on commit.
+     */
+    private void writeManifest(TaskAttemptContext context, StringBuilder manifest) throws IOException {
+        Path work = getDefaultWorkFile(context, "");
+        Path manifestFile = new Path(work.getParent(), MANIFEST + "-" + work.getName());
+        try (OutputStream manifestOut = manifestFile.getFileSystem(context.getConfiguration()).create(manifestFile, false)) {
+            manifestOut.write(manifest.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Rolling writers of a task's rows into partition subdirectories of the output, at most
+     * {@link #PARTITION_MAX_OPEN} of them open at a time. Past that, the least recently written
+     * partition is closed and, should more of its rows come, continues in a new part file. The
+     * task's manifest lists the parts of all partitions by their path in the output directory.
+     * Parallel gzip writers share one pool of compression threads.
+     */
+    final class PartitionWriters implements Closeable {
+
+        private final TaskAttemptContext context;
+
+        private final int maxOpen;
+
+        private final LinkedHashMap<String, RollingRecordWriter> open = new LinkedHashMap<>(16, 0.75f, true);
+
+        // parts written by closed partitions, so reopened ones do not overwrite them
+        private final Map<String, Integer> closedParts = new HashMap<>();
+
+        private final StringBuilder manifest = new StringBuilder();
+
+        private final ExecutorService pool;
+
+        private long evicted;
+
+        private PartitionWriters(TaskAttemptContext context) {
+            Configuration conf = context.getConfiguration();
+            this.context = context;
+            this.maxOpen = Math.max(1, conf.getInt(PARTITION_MAX_OPEN, DEFAULT_PARTITION_MAX_OPEN));
+            boolean parallel = Compression.parse(conf.get(COMPRESSION, DEFAULT_COMPRESSION)).isParallel();
+            this.pool = parallel ? ParallelGzipOutputStream.newPool(Compression.threads(conf)) : null;
+        }
+
+        void write(String partition, Text json) throws IOException {
+            RollingRecordWriter writer = open.get(partition);
+            if (writer == null) {
+                if (open.size() >= maxOpen) {
+                    Iterator<Map.Entry<String, RollingRecordWriter>> eldest = open.entrySet().iterator();
+                    Map.Entry<String, RollingRecordWriter> entry = eldest.next();
+                    eldest.remove();
+                    entry.getValue().finish();
+                    closedParts.put(entry.getKey(), entry.getValue().parts);
+                    evicted++;
+                }
+                Integer parts = closedParts.remove(partition);
+                writer = new RollingRecordWriter(context, partition, parts == null ? 0 : parts, manifest, pool);
+                open.put(partition, writer);
+            }
+            writer.write(json, NullWritable.get());
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                for (RollingRecordWriter writer : open.values()) {
+                    writer.finish();
+                }
+            } finally {
+                if (pool != null) {
+                    pool.shutdownNow();
+                }
+            }
+            open.clear();
+            if (manifest.length() > 0) {
+                writeManifest(context, manifest);
+            }
+            // each one leaves a part file behind, many of them call for a higher PARTITION_MAX_OPEN
+            context.getCounter(PARTITION_GROUP, "Evicted writers").increment(evicted);
+        }
+    }
+
+    /**
+     * Commits the task outputs and merges the manifests of the tasks into the job manifest, before
+     * the success marker is written.
+     */
+    private static class ManifestCommitter extends FileOutputCommitter {
+
+        private final Path outputPath;
+
+        private ManifestCommitter(Path outputPath, TaskAttemptContext context) throws IOException {
+            super(outputPath, context);
+            this.outputPath = outputPath;
+        }
+
+        @Override
+        public void commitJob(JobContext context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            boolean marker = conf.getBoolean(SUCCESSFUL_JOB_OUTPUT_DIR_MARKER, true);
+            conf.setBoolean(SUCCESSFUL_JOB_OUTPUT_DIR_MARKER, false);
+            try {
+                super.commitJob(context);
+            } finally {
+                conf.setBoolean(SUCCESSFUL_JOB_OUTPUT_DIR_MARKER, marker);
+            }
+            FileSystem fs = outputPath.getFileSystem(conf);
+            FileStatus[] pieces = fs.globStatus(new Path(outputPath, MANIFEST + "-*"));
+            Arrays.sort(pieces);
+            try (OutputStream manifest = fs.create(new Path(outputPath, MANIFEST), true)) {
+                for (FileStatus piece : pieces) {
+                    try (InputStream in = fs.open(piece.getPath())) {
+                        IOUtils.copyBytes(in, manifest, conf, false);
+                    }
+                }
+            }
+            for (FileStatus piece : pieces) {
+                fs.delete(piece.getPath(), false);
+            }
+            if (marker) {
+                fs.create(new Path(outputPath, SUCCEEDED_FILE_NAME), true).close();
+            }
+        }
+    }
+
+    /**
+     * Output compression given as {@code none}, {@code gzip[:level]} or {@code pgzip[:level]}, the
+     * last one being gzip compressed in parallel into a multi-member file.
+     */
+    public static final class Compression {
+
+        private final String type;
+
+        private final int level;
+
+        private Compression(String type, int level) {
+            this.type = type;
+            this.level = level;
+        }
+
+        public static Compression parse(String spec) {
+            String[] parts = spec.trim().toLowerCase().split(":");
+            String type = parts[0];
+            if (!type.equals("none") && !type.equals("gzip") && !type.equals("pgzip")) {
+                throw new IllegalArgumentException("Unknown compression: " + spec);
+            }
+            int level = Deflater.DEFAULT_COMPRESSION;
+            if (parts.length > 1) {
+                level = Integer.parseInt(parts[1]);
+                if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+                    throw new IllegalArgumentException("Compression level must be between 1 and 9: " + spec);
+                }
+            }
+            return new Compression(type, level);
+        }
+
+        public boolean isCompressed() {
+            return !type.equals("none");
+        }
+
+        public boolean isParallel() {
+            return type.equals("pgzip");
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        String getExtension() {
+            return isCompressed() ? ".gz" : "";
+        }
+
+        static int threads(Configuration conf) {
+            return conf.getInt(COMPRESSION_THREADS, Runtime.getRuntime().availableProcessors());
+        }
+
+        OutputStream wrap(OutputStream out, Configuration conf) throws IOException {
+            if (isParallel()) {
+                return new ParallelGzipOutputStream(out, level, threads(conf));
+            }
+            return wrap(out, null, 0);
+        }
+
+        /**
+         * Wraps the stream, compressing parallel gzip on the shared pool with at most maxPending
+         * chunks in flight.
+         */
+        OutputStream wrap(OutputStream out, ExecutorService pool, int maxPending) throws IOException {
+            if (isParallel()) {
+                return new ParallelGzipOutputStream(out, level, pool, maxPending, ParallelGzipOutputStream.DEFAULT_CHUNK_SIZE);
+            } else if (isCompressed()) {
+                return new BufferedOutputStream(new GZIPOutputStream(out, BUFFER_SIZE) {
+                    {
+                        def.setLevel(level);
+                    }
+                }, BUFFER_SIZE);
+            }
+            return new BufferedOutputStream(out, BUFFER_SIZE);
+        }
+    }
+}
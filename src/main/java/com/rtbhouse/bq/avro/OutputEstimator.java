@@ -0,0 +1,188 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.mapred.FsInput;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * Estimates the output of a conversion from a sample of the input blocks, converted on the
+ * client the way the record path does it. Samples are spread evenly over every file: past each
+ * sampled block the reader skips to the first sync marker far enough on to keep the sampled bytes
+ * at the given fraction of the input, so the same input always gives the same estimate.
+ */
+final class OutputEstimator {
+
+    private static final long MB = 1024 * 1024L;
+
+    // long enough to make up for starting the task, short enough to be cheap to retry
+    private static final long TASK_SECONDS = 600;
+
+    private final Configuration conf;
+
+    private final Schema target;
+
+    private final RowFilter filter;
+
+    private final JsonBuilder jsonBuilder;
+
+    private final JsonOutput output = new JsonOutput();
+
+    private final CountingOutputStream compressedBytes = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+
+    private final OutputStream compressed;
+
+    private final double fraction;
+
+    private final Map<Long, GenericDatumReader<GenericRecord>> datumReaders = new HashMap<>();
+
+    private BinaryDecoder decoder;
+
+    private GenericRecord record;
+
+    private int files;
+
+    private long blocks;
+
+    private long inputBytes;
+
+    private long sampledBytes;
+
+    private long rows;
+
+    private long skipped;
+
+    private long filtered;
+
+    private long jsonBytes;
+
+    private long nanos;
+
+    /**
+     * Estimator of rows of the target schema written with the given top-level columns, maps and
+     * compression, sampling the given fraction of the input.
+     */
+    OutputEstimator(Configuration conf, Schema target, Set<String> columns, MapEncoding maps, RowFilter filter, int rowMaxSize,
+        NdjsonOutputFormat.Compression compression, double fraction) throws IOException {
+
+        if (fraction <= 0 || fraction > 1) {
+            throw new IllegalArgumentException("Sample fraction must be above 0 and at most 1: " + fraction);
+        }
+        this.conf = conf;
+        this.target = target;
+        this.filter = filter;
+        this.jsonBuilder = new JsonBuilder(target, columns, maps);
+        this.compressed = compression.wrap(compressedBytes, conf);
+        this.fraction = fraction;
+        output.setLimit(rowMaxSize);
+    }
+
+    long getSampledBytes() {
+        return sampledBytes;
+    }
+
+    long getRows() {
+        return rows;
+    }
+
+    long getSkipped() {
+        return skipped;
+    }
+
+    long getJsonBytes() {
+        return jsonBytes;
+    }
+
+    /**
+     * Samples the range of the file from start to end.
+     */
+    void sample(Path path, long start, long end) throws IOException {
+        long started = System.nanoTime();
+        try (AvroBlockReader reader = new AvroBlockReader(new FsInput(path, conf), start, end)) {
+            files++;
+            inputBytes += end - start;
+            long position = start;
+            while (position < end) {
+                reader.sync(position);
+                long blockStart = reader.previousSync();
+                ByteBuffer block = reader.nextBlockInSplit();
+                if (block == null) {
+                    break;
+                }
+                long blockLength = reader.previousSync() - blockStart;
+                convert(reader.getSchema(), block, reader.getBlockCount());
+                blocks++;
+                sampledBytes += blockLength;
+                // the sync marker closing this block starts the next one, a fraction of 1 reads them all
+                position = blockStart - DataFileConstants.SYNC_SIZE + (long) Math.ceil(blockLength / fraction);
+            }
+        }
+        nanos += System.nanoTime() - started;
+    }
+
+    private void convert(Schema writerSchema, ByteBuffer block, long count) throws IOException {
+        GenericDatumReader<GenericRecord> datumReader = datumReaders.computeIfAbsent(SchemaNormalization.parsingFingerprint64(writerSchema),
+            fingerprint -> new GenericDatumReader<>(writerSchema, target));
+        decoder = DecoderFactory.get().binaryDecoder(block.array(), block.arrayOffset() + block.position(), block.remaining(), decoder);
+        for (long i = count; i > 0; i--) {
+            record = datumReader.read(record, decoder);
+            if (filter != null && !filter.accept(record)) {
+                filtered++;
+                continue;
+            }
+            output.reset();
+            jsonBuilder.build(record, output);
+            if (output.isOverflow()) {
+                skipped++;
+                continue;
+            }
+            rows++;
+            jsonBytes += output.getLength() + 1;
+            compressed.write(output.getBytes(), 0, output.getLength());
+            compressed.write('\n');
+        }
+    }
+
+    /**
+     * Prints the sample and the output projected from it to the whole input, with a split size
+     * for map tasks of about ten minutes each, writing a single part of at most partMaxSize bytes.
+     */
+    void print(long partMaxSize) throws IOException {
+        compressed.close();
+        if (sampledBytes == 0) {
+            System.out.println(String.format("Sampled no blocks of %s input files", files));
+            return;
+        }
+        double scale = inputBytes / (double) sampledBytes;
+        long records = rows + skipped + filtered;
+        System.out.println(String.format("Sampled %s of %s input bytes in %s blocks of %s files: %s records, %s rows, "
+            + "%s skipped over the row size limit, %s filtered out",
+            sampledBytes, inputBytes, blocks, files, records, rows, skipped, filtered));
+        System.out.println(String.format("Projected output: %s rows, %s of json, %s compressed; oversize rate %.4f%%",
+            Math.round(rows * scale), StringUtils.byteDesc(Math.round(jsonBytes * scale)),
+            StringUtils.byteDesc(Math.round(compressedBytes.getByteCount() * scale)), records == 0 ? 0.0 : 100.0 * skipped / records));
+        System.out.println(String.format("Projected conversion time: %s core seconds", Math.round(nanos * scale / 1e9)));
+        if (compressedBytes.getByteCount() > 0) {
+            long partSplit = (long) (partMaxSize * (double) sampledBytes / compressedBytes.getByteCount());
+            long timeSplit = (long) (TASK_SECONDS * 1e9 * sampledBytes / Math.max(nanos, 1));
+            long splitMb = Math.max(AvroCombineFileInputFormat.MIN_SPLIT_SIZE, Math.min(partSplit, timeSplit)) / MB;
+            System.out.println(String.format("Suggested -m %s for map tasks of up to %s minutes writing one part of at most %s, %s map tasks",
+                splitMb, TASK_SECONDS / 60, StringUtils.byteDesc(partMaxSize), (inputBytes + splitMb * MB - 1) / (splitMb * MB)));
+        }
+    }
+}
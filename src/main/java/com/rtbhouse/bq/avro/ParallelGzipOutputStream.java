@@ -0,0 +1,212 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream compressing fixed size chunks on a pool of threads. Every chunk becomes a
+ * separate gzip member, so the result is a multi-member gzip file readable by gzip, Hadoop and
+ * BigQuery like a single stream. Streams written at the same time can share one pool, see
+ * {@link #newPool(int)}, each keeping at most its own number of chunks in flight.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private final OutputStream out;
+
+    private final ExecutorService executor;
+
+    private final Deque<Member> free = new ArrayDeque<>();
+
+    private final Deque<Future<Member>> pending = new ArrayDeque<>();
+
+    private final int maxPending;
+
+    private final boolean ownsExecutor;
+
+    private Member current;
+
+    private boolean written;
+
+    private boolean closed;
+
+    public ParallelGzipOutputStream(OutputStream out, int level, int threads) {
+        this(out, level, threads, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ParallelGzipOutputStream(OutputStream out, int level, int threads, int chunkSize) {
+        // two chunks per thread keep the workers busy while the oldest one is being written
+        this(out, level, newPool(threads), 2 * threads, chunkSize, true);
+    }
+
+    /**
+     * Stream compressing on the given pool, which it leaves running when closed, with at most
+     * maxPending chunks, each of them holding about 1.5 times the chunk size, waiting for it.
+     */
+    public ParallelGzipOutputStream(OutputStream out, int level, ExecutorService executor, int maxPending, int chunkSize) {
+        this(out, level, executor, maxPending, chunkSize, false);
+    }
+
+    private ParallelGzipOutputStream(OutputStream out, int level, ExecutorService executor, int maxPending, int chunkSize, boolean ownsExecutor) {
+        this.out = out;
+        this.executor = executor;
+        this.maxPending = Math.max(1, maxPending);
+        this.ownsExecutor = ownsExecutor;
+        for (int i = 0; i <= this.maxPending; i++) {
+            free.add(new Member(level, chunkSize));
+        }
+        this.current = free.poll();
+    }
+
+    /**
+     * A pool of daemon compression threads.
+     */
+    public static ExecutorService newPool(int threads) {
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "pgzip");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (current.length == current.input.length) {
+            submit();
+        }
+        current.input[current.length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (current.length == current.input.length) {
+                submit();
+            }
+            int count = Math.min(length, current.input.length - current.length);
+            System.arraycopy(b, offset, current.input, current.length, count);
+            current.length += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (current.length > 0 || !written) {
+                // an empty stream still gets one empty member, so it is a valid gzip file
+                submit();
+            }
+            while (!pending.isEmpty()) {
+                writeOldest();
+            }
+            out.close();
+        } finally {
+            if (ownsExecutor) {
+                executor.shutdownNow();
+            }
+            current.deflater.end();
+            for (Member member : free) {
+                member.deflater.end();
+            }
+        }
+    }
+
+    private void submit() throws IOException {
+        Member member = current;
+        pending.add(executor.submit(() -> member.compress()));
+        written = true;
+        // the chunk just submitted counts, so up to maxPending of them compress while the next one fills
+        while (pending.size() > maxPending || free.isEmpty()) {
+            writeOldest();
+        }
+        current = free.poll();
+    }
+
+    private void writeOldest() throws IOException {
+        Member member;
+        try {
+            member = pending.poll().get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        out.write(member.output, 0, member.outputLength);
+        member.length = 0;
+        free.add(member);
+    }
+
+    private static final class Member {
+
+        private final Deflater deflater;
+
+        private final CRC32 crc = new CRC32();
+
+        private final byte[] input;
+
+        private int length;
+
+        private byte[] output;
+
+        private int outputLength;
+
+        private Member(int level, int chunkSize) {
+            deflater = new Deflater(level, true);
+            input = new byte[chunkSize];
+            output = new byte[Math.max(chunkSize / 2, 64)];
+        }
+
+        private Member compress() {
+            deflater.reset();
+            deflater.setInput(input, 0, length);
+            deflater.finish();
+            crc.reset();
+            crc.update(input, 0, length);
+            System.arraycopy(HEADER, 0, output, 0, HEADER.length);
+            outputLength = HEADER.length;
+            while (!deflater.finished()) {
+                if (outputLength == output.length) {
+                    output = Arrays.copyOf(output, output.length << 1);
+                }
+                outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+            }
+            if (outputLength + 8 > output.length) {
+                output = Arrays.copyOf(output, outputLength + 8);
+            }
+            writeIntLE((int) crc.getValue());
+            writeIntLE(length);
+            return this;
+        }
+
+        private void writeIntLE(int value) {
+            output[outputLength++] = (byte) value;
+            output[outputLength++] = (byte) (value >> 8);
+            output[outputLength++] = (byte) (value >> 16);
+            output[outputLength++] = (byte) (value >> 24);
+        }
+    }
+}
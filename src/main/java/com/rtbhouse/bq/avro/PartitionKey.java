@@ -0,0 +1,109 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+
+/**
+ * The {@code <column>=<value>} output directory of a record partitioned by a top-level column.
+ * DATE columns and TIMESTAMP columns, by their UTC day, are named like the yyyy-MM-dd partitions of
+ * a day partitioned table, other values are escaped to stay within one path segment and a missing
+ * one is {@value #NULL_PARTITION}, like BigQuery names its partition of null values.
+ */
+final class PartitionKey {
+
+    static final String NULL_PARTITION = "__NULL__";
+
+    private final String column;
+
+    private final int pos;
+
+    private final LogicalType logicalType;
+
+    private Object lastValue;
+
+    private String lastPartition;
+
+    PartitionKey(Schema schema, String column) {
+        Schema.Field field = schema.getField(column);
+        if (field == null) {
+            throw new IllegalArgumentException("No column " + column + " in schema " + schema.getFullName());
+        }
+        Schema type = nonNull(field.schema());
+        switch (type.getType()) {
+            case STRING:
+            case ENUM:
+            case INT:
+            case LONG:
+            case BOOLEAN:
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot partition by column " + column + " of type " + field.schema());
+        }
+        this.column = column;
+        this.pos = field.pos();
+        this.logicalType = LogicalType.of(type);
+    }
+
+    String getColumn() {
+        return column;
+    }
+
+    /**
+     * The partition directory of the record.
+     */
+    String of(GenericRecord record) {
+        Object value = record.get(pos);
+        // input is mostly in partition order, so consecutive records share the value
+        if (lastPartition != null && (value == null ? lastValue == null : value.equals(lastValue))) {
+            return lastPartition;
+        }
+        // the reader decodes the next string into the same Utf8, so a copy is kept
+        lastValue = value instanceof Utf8 ? new Utf8((Utf8) value) : value;
+        lastPartition = column + "=" + format(value);
+        return lastPartition;
+    }
+
+    private String format(Object value) {
+        if (value == null) {
+            return NULL_PARTITION;
+        } else if (logicalType == LogicalType.DATE) {
+            return LocalDate.ofEpochDay(((Number) value).longValue()).toString();
+        } else if (logicalType == LogicalType.TIMESTAMP_MILLIS) {
+            return day(((Number) value).longValue());
+        } else if (logicalType == LogicalType.TIMESTAMP_MICROS) {
+            // rounded down, so sub-millisecond instants before the epoch stay on their day
+            return day(Math.floorDiv(((Number) value).longValue(), 1000));
+        }
+        try {
+            return URLEncoder.encode(value.toString(), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String day(long millis) {
+        return Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC).toLocalDate().toString();
+    }
+
+    private static Schema nonNull(Schema schema) {
+        if (!schema.getType().equals(Schema.Type.UNION)) {
+            return schema;
+        }
+        Schema nonNull = null;
+        for (Schema branch : schema.getTypes()) {
+            if (!branch.getType().equals(Schema.Type.NULL)) {
+                if (nonNull != null) {
+                    throw new IllegalArgumentException("Cannot partition by a union of several types: " + schema);
+                }
+                nonNull = branch;
+            }
+        }
+        return nonNull == null ? schema : nonNull;
+    }
+}
@@ -0,0 +1,174 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Manifest of the input files converted into an output directory, kept in its {@value #FILE}
+ * file as lines of tab separated path, length, modification time and sync marker. Incremental
+ * runs convert only new and changed files, and of a file which was only appended to, since its
+ * sync marker is still at the length converted before, only the blocks past that length.
+ */
+final class ProcessedManifest {
+
+    static final String FILE = "_processed";
+
+    private static final int SYNC_SIZE = DataFileConstants.SYNC_SIZE;
+
+    private final Configuration conf;
+
+    private final Path path;
+
+    private final Map<Path, Entry> entries = new LinkedHashMap<>();
+
+    private final List<Entry> pending = new ArrayList<>();
+
+    private ProcessedManifest(Configuration conf, Path path) {
+        this.conf = conf;
+        this.path = path;
+    }
+
+    /**
+     * An input file to convert from the given start offset on.
+     */
+    static final class Input {
+
+        private final Path path;
+
+        private final long start;
+
+        private Input(Path path, long start) {
+            this.path = path;
+            this.start = start;
+        }
+
+        Path getPath() {
+            return path;
+        }
+
+        long getStart() {
+            return start;
+        }
+    }
+
+    private static final class Entry {
+
+        private final Path path;
+
+        private final long length;
+
+        private final long modificationTime;
+
+        private final byte[] sync;
+
+        private Entry(Path path, long length, long modificationTime, byte[] sync) {
+            this.path = path;
+            this.length = length;
+            this.modificationTime = modificationTime;
+            this.sync = sync;
+        }
+    }
+
+    /**
+     * Reads the manifest of the output directory, which is empty on the first run.
+     */
+    static ProcessedManifest read(Configuration conf, Path outputDirectory) throws IOException {
+        ProcessedManifest manifest = new ProcessedManifest(conf, new Path(outputDirectory, FILE));
+        FileSystem fs = manifest.path.getFileSystem(conf);
+        if (!fs.exists(manifest.path)) {
+            return manifest;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(manifest.path), StandardCharsets.UTF_8))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] columns = line.split("\t");
+                if (columns.length != 4) {
+                    throw new IOException("Malformed line in " + manifest.path + ": " + line);
+                }
+                Path input = new Path(columns[0]);
+                manifest.entries.put(input, new Entry(input, Long.parseLong(columns[1]), Long.parseLong(columns[2]), hex(columns[3])));
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Picks the files to convert out of the listed ones and keeps their entries, to be written
+     * once the conversion succeeds.
+     */
+    List<Input> select(List<FileStatus> files) throws IOException {
+        List<Input> inputs = new ArrayList<>();
+        for (FileStatus file : files) {
+            Entry entry = entries.get(file.getPath());
+            if (entry != null && entry.length == file.getLen() && entry.modificationTime == file.getModificationTime()) {
+                continue;
+            }
+            long start = 0;
+            if (entry != null && entry.length < file.getLen() && Arrays.equals(entry.sync, readSync(file.getPath(), entry.length))) {
+                // the reader starts at the first sync marker at or past the start
+                start = entry.length - SYNC_SIZE;
+            } else if (entry != null) {
+                System.out.println(String.format("Converting changed file %s again, rows converted before will be repeated", file.getPath()));
+            }
+            inputs.add(new Input(file.getPath(), start));
+            pending.add(new Entry(file.getPath(), file.getLen(), file.getModificationTime(), readSync(file.getPath(), file.getLen())));
+        }
+        return inputs;
+    }
+
+    /**
+     * Writes the manifest with the entries of the selected files.
+     */
+    void commit() throws IOException {
+        for (Entry entry : pending) {
+            entries.put(entry.path, entry);
+        }
+        pending.clear();
+        FileSystem fs = path.getFileSystem(conf);
+        Path tmp = new Path(path.getParent(), FILE + ".tmp");
+        try (Writer writer = new OutputStreamWriter(fs.create(tmp, true), StandardCharsets.UTF_8)) {
+            for (Entry entry : entries.values()) {
+                writer.write(String.format("%s\t%s\t%s\t%s\n", entry.path, entry.length, entry.modificationTime, Hex.encodeHexString(entry.sync)));
+            }
+        }
+        fs.delete(path, false);
+        if (!fs.rename(tmp, path)) {
+            throw new IOException("Cannot rename " + tmp + " to " + path);
+        }
+    }
+
+    /**
+     * Every block of a container file, and its header, ends with the sync marker of the file.
+     */
+    private byte[] readSync(Path file, long length) throws IOException {
+        byte[] sync = new byte[SYNC_SIZE];
+        try (FSDataInputStream in = file.getFileSystem(conf).open(file)) {
+            in.readFully(length - SYNC_SIZE, sync);
+        }
+        return sync;
+    }
+
+    private static byte[] hex(String hex) throws IOException {
+        try {
+            return Hex.decodeHex(hex.toCharArray());
+        } catch (DecoderException e) {
+            throw new IOException("Malformed sync marker " + hex, e);
+        }
+    }
+}
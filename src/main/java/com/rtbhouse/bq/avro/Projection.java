@@ -0,0 +1,67 @@
+package com.rtbhouse.bq.avro;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.avro.Schema;
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * Top-level column projection of a record schema. Used as the Avro reader schema, the projection
+ * lets the decoder skip the binary of every other column.
+ */
+final class Projection {
+
+    private Projection() {
+    }
+
+    /**
+     * Parses a comma separated list of column names, returning null for a null or empty list.
+     */
+    static Set<String> parseColumns(String columns) {
+        if (columns == null || columns.trim().isEmpty()) {
+            return null;
+        }
+        Set<String> parsed = new LinkedHashSet<>();
+        for (String column : columns.split(",")) {
+            if (!column.trim().isEmpty()) {
+                parsed.add(column.trim());
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Returns the record schema reduced to the given columns, in schema order. A null column set
+     * keeps the schema as it is.
+     */
+    static Schema project(Schema schema, Collection<String> columns) {
+        if (columns == null) {
+            return schema;
+        }
+        for (String column : columns) {
+            if (schema.getField(column) == null) {
+                throw new IllegalArgumentException("No column " + column + " in schema " + schema.getFullName());
+            }
+        }
+        List<Schema.Field> fields = new ArrayList<>();
+        for (Schema.Field field : schema.getFields()) {
+            if (columns.contains(field.name())) {
+                Schema.Field copy = new Schema.Field(field.name(), field.schema(), field.doc(), field.defaultValue(), field.order());
+                for (Map.Entry<String, JsonNode> prop : field.getJsonProps().entrySet()) {
+                    copy.addProp(prop.getKey(), prop.getValue());
+                }
+                fields.add(copy);
+            }
+        }
+        Schema projection = Schema.createRecord(schema.getName(), schema.getDoc(), schema.getNamespace(), schema.isError());
+        projection.setFields(fields);
+        for (Map.Entry<String, JsonNode> prop : schema.getJsonProps().entrySet()) {
+            projection.addProp(prop.getKey(), prop.getValue());
+        }
+        return projection;
+    }
+}
@@ -0,0 +1,85 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.Decoder;
+
+/**
+ * Transcodes binary datums of any writer schema to json rows of a target schema. Datums whose
+ * writer schema, reduced to the columns, is the target are transcoded straight, others are first
+ * decoded into target records with Avro schema resolution. Writer schemas are compared with their
+ * properties, as their parsing fingerprint leaves out logical types the json depends on, and
+ * converters are cached by the writer schema. Like the transcoder it keeps scratch state, so every thread
+ * needs its own instance.
+ */
+class ResolvingTranscoder {
+
+    private final Schema target;
+
+    private final Set<String> columns;
+
+    private final MapEncoding maps;
+
+    private final Map<Schema, Converter> converters = new HashMap<>();
+
+    private Schema schema;
+
+    private Converter converter;
+
+    /**
+     * Transcoder to the target record schema, already reduced to the given top-level columns, with
+     * maps in the given encoding. A null target transcodes every datum with its own writer schema.
+     */
+    ResolvingTranscoder(Schema target, Set<String> columns, MapEncoding maps) {
+        this.target = target;
+        this.columns = columns;
+        this.maps = maps;
+    }
+
+    void transcode(Schema writerSchema, Decoder in, JsonOutput out) throws IOException {
+        if (writerSchema != schema) {
+            schema = writerSchema;
+            converter = converters.computeIfAbsent(writerSchema, this::compile);
+        }
+        converter.convert(in, out);
+    }
+
+    private interface Converter {
+
+        void convert(Decoder in, JsonOutput out) throws IOException;
+    }
+
+    private Converter compile(Schema writerSchema) {
+        if (target == null || hasColumns(writerSchema) && Projection.project(writerSchema, columns).equals(target)) {
+            return new AvroJsonTranscoder(writerSchema, columns, maps)::transcode;
+        }
+        GenericDatumReader<GenericRecord> reader = new GenericDatumReader<>(writerSchema, target);
+        JsonWriter writer = SchemaMetadata.of(target, null, maps).getWriter();
+        return new Converter() {
+
+            private GenericRecord record;
+
+            @Override
+            public void convert(Decoder in, JsonOutput out) throws IOException {
+                record = reader.read(record, in);
+                writer.write(record, out);
+            }
+        };
+    }
+
+    private boolean hasColumns(Schema writerSchema) {
+        if (columns != null) {
+            for (String column : columns) {
+                if (writerSchema.getField(column) == null) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,187 @@
+package com.rtbhouse.bq.avro;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+
+/**
+ * Row filter given as predicates on top-level fields joined with {@code and}, e.g.
+ * {@code country = 'PL' and price >= 10 and user is not null}. Comparisons support
+ * {@code = != < <= > >=} on numbers and strings, {@code = !=} on booleans, and a comparison
+ * with a null value is false. Literals may be quoted with {@code '} or {@code "}, which keeps an
+ * {@code and} inside them part of the literal.
+ */
+class RowFilter {
+
+    private static final Pattern AND = Pattern.compile("\\s+and\\s+", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern NULL_CHECK = Pattern.compile("(\\w+)\\s+is\\s+(not\\s+)?null", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern COMPARISON = Pattern.compile("(\\w+)\\s*(==|=|!=|<>|<=|>=|<|>)\\s*(.+)");
+
+    private final Predicate[] predicates;
+
+    private final Set<String> columns;
+
+    private RowFilter(List<Predicate> predicates, Set<String> columns) {
+        this.predicates = predicates.toArray(new Predicate[predicates.size()]);
+        this.columns = columns;
+    }
+
+    static RowFilter parse(String where, Schema schema) {
+        List<Predicate> predicates = new ArrayList<>();
+        Set<String> columns = new LinkedHashSet<>();
+        for (String condition : conditions(where.trim())) {
+            Matcher nullCheck = NULL_CHECK.matcher(condition.trim());
+            Matcher comparison = COMPARISON.matcher(condition.trim());
+            if (nullCheck.matches()) {
+                int pos = field(schema, nullCheck.group(1)).pos();
+                boolean notNull = nullCheck.group(2) != null;
+                predicates.add(record -> (record.get(pos) != null) == notNull);
+                columns.add(nullCheck.group(1));
+            } else if (comparison.matches()) {
+                predicates.add(comparison(field(schema, comparison.group(1)), comparison.group(2), literal(comparison.group(3))));
+                columns.add(comparison.group(1));
+            } else {
+                throw new IllegalArgumentException("Cannot parse condition: " + condition);
+            }
+        }
+        return new RowFilter(predicates, columns);
+    }
+
+    /**
+     * Splits the expression at the ands outside of quoted literals.
+     */
+    private static List<String> conditions(String where) {
+        List<String> conditions = new ArrayList<>();
+        Matcher and = AND.matcher(where);
+        int start = 0;
+        char quote = 0;
+        for (int i = 0; i < where.length(); i++) {
+            char c = where.charAt(i);
+            if (quote != 0) {
+                quote = c == quote ? 0 : quote;
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (Character.isWhitespace(c) && and.region(i, where.length()).lookingAt()) {
+                conditions.add(where.substring(start, i));
+                start = and.end();
+                i = start - 1;
+            }
+        }
+        conditions.add(where.substring(start));
+        return conditions;
+    }
+
+    /**
+     * Top-level columns the filter reads, which have to be part of the reader schema.
+     */
+    Set<String> getColumns() {
+        return columns;
+    }
+
+    boolean accept(GenericRecord record) {
+        for (Predicate predicate : predicates) {
+            if (!predicate.test(record)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private interface Predicate {
+
+        boolean test(GenericRecord record);
+    }
+
+    private interface Comparison {
+
+        int compare(Object value);
+    }
+
+    private static Schema.Field field(Schema schema, String name) {
+        Schema.Field field = schema.getField(name);
+        if (field == null) {
+            throw new IllegalArgumentException("No column " + name + " in schema " + schema.getFullName());
+        }
+        return field;
+    }
+
+    private static String literal(String literal) {
+        String trimmed = literal.trim();
+        if (trimmed.length() >= 2 && (trimmed.startsWith("'") && trimmed.endsWith("'")
+            || trimmed.startsWith("\"") && trimmed.endsWith("\""))) {
+            return trimmed.substring(1, trimmed.length() - 1);
+        }
+        return trimmed;
+    }
+
+    private static Predicate comparison(Schema.Field field, String operator, String literal) {
+        int pos = field.pos();
+        Comparison comparison = comparison(nonNull(field.schema()), literal);
+        switch (operator) {
+            case "=":
+            case "==":
+                return record -> record.get(pos) != null && comparison.compare(record.get(pos)) == 0;
+            case "!=":
+            case "<>":
+                return record -> record.get(pos) != null && comparison.compare(record.get(pos)) != 0;
+            case "<":
+                return record -> record.get(pos) != null && comparison.compare(record.get(pos)) < 0;
+            case "<=":
+                return record -> record.get(pos) != null && comparison.compare(record.get(pos)) <= 0;
+            case ">":
+                return record -> record.get(pos) != null && comparison.compare(record.get(pos)) > 0;
+            default:
+                return record -> record.get(pos) != null && comparison.compare(record.get(pos)) >= 0;
+        }
+    }
+
+    private static Comparison comparison(Schema schema, String literal) {
+        switch (schema.getType()) {
+            case INT:
+            case LONG:
+                long longValue = Long.parseLong(literal);
+                return value -> Long.compare(((Number) value).longValue(), longValue);
+            case FLOAT:
+            case DOUBLE:
+                double doubleValue = Double.parseDouble(literal);
+                return value -> Double.compare(((Number) value).doubleValue(), doubleValue);
+            case BOOLEAN:
+                boolean booleanValue = Boolean.parseBoolean(literal);
+                return value -> Boolean.compare((Boolean) value, booleanValue);
+            case STRING:
+            case ENUM:
+                Utf8 utf8 = new Utf8(literal);
+                // Utf8 values compare by their bytes, which orders them like their code points
+                return value -> value instanceof Utf8 ? ((Utf8) value).compareTo(utf8) : value.toString().compareTo(literal);
+            default:
+                throw new IllegalArgumentException("Cannot compare values of type " + schema);
+        }
+    }
+
+    private static Schema nonNull(Schema schema) {
+        if (!schema.getType().equals(Schema.Type.UNION)) {
+            return schema;
+        }
+        Schema nonNull = null;
+        for (Schema branch : schema.getTypes()) {
+            if (!branch.getType().equals(Schema.Type.NULL)) {
+                if (nonNull != null) {
+                    throw new IllegalArgumentException("Cannot compare values of union " + schema);
+                }
+                nonNull = branch;
+            }
+        }
+        if (nonNull == null) {
+            throw new IllegalArgumentException("Cannot compare values of union " + schema);
+        }
+        return nonNull;
+    }
+}
@@ -4,7 +4,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.avro.Schema;
 import org.apache.commons.lang.StringUtils;
@@ -30,9 +32,59 @@ public class SchemaConverter {
 
     private static final String TBOOLEAN = "BOOLEAN";
 
+    private static final String TBYTES = "BYTES";
+
     private static final List<Schema.Type> COMPLEX_TYPES
         = Lists.newArrayList(Schema.Type.RECORD, Schema.Type.ARRAY, Schema.Type.MAP, Schema.Type.UNION);
 
+    private final MapEncoding maps;
+
+    public SchemaConverter() {
+        this(MapEncoding.RECORDS);
+    }
+
+    SchemaConverter(MapEncoding maps) {
+        this.maps = maps;
+    }
+
+    /**
+     * Whether the union has more than one non-null branch, which is written as a RECORD with a
+     * column for every branch, named by {@link #branchName(Schema)}, set for the branch of the value.
+     */
+    static boolean isBranchRecord(Schema union) {
+        int branches = 0;
+        for (Schema branch : union.getTypes()) {
+            if (!branch.getType().equals(Schema.Type.NULL)) {
+                branches++;
+            }
+        }
+        return branches > 1;
+    }
+
+    /**
+     * The column of a union branch: the simple name of a named type, the type name otherwise, or,
+     * for named types sharing their simple name with another branch, the full name with the dots
+     * of the namespace as underscores.
+     */
+    static String branchName(Schema union, Schema branch) {
+        Set<String> names = new HashSet<>();
+        String branchName = null;
+        for (Schema type : union.getTypes()) {
+            String name = type.getName();
+            for (Schema other : union.getTypes()) {
+                if (other != type && other.getName().equals(name)) {
+                    name = type.getFullName().replace('.', '_');
+                    break;
+                }
+            }
+            if (!names.add(name)) {
+                throw new IllegalArgumentException("Union branches share the column " + name + ": " + union);
+            }
+            branchName = type == branch ? name : branchName;
+        }
+        return branchName;
+    }
+
     public String convert(Schema avroSchema) {
         if (!avroSchema.getType().equals(Schema.Type.RECORD)) {
             throw new IllegalArgumentException("Avro schema must be a record.");
@@ -56,11 +108,16 @@ public class SchemaConverter {
         } else if (type.equals(Schema.Type.RECORD)) {
             return complex(fieldName, TRECORD, TNULLABLE, convertFields(schema.getFields()));
         } else if (type.equals(Schema.Type.ARRAY)) {
-            if (Schema.Type.RECORD.equals(schema.getElementType().getType())) {
-                return complex(fieldName, TRECORD, TREPEATED, convertFields(schema.getElementType().getFields()));
+            Schema element = schema.getElementType();
+            if (Schema.Type.RECORD.equals(element.getType())) {
+                return complex(fieldName, TRECORD, TREPEATED, convertFields(element.getFields()));
+            } else if (Schema.Type.UNION.equals(element.getType()) && isBranchRecord(element)) {
+                return complex(fieldName, TRECORD, TREPEATED, convertBranches(element));
             } else {
                 return field(fieldName, typeFor(schema.getElementType()), TREPEATED);
             }
+        } else if (type.equals(Schema.Type.MAP) && maps.equals(MapEncoding.JSON)) {
+            return field(fieldName, TSTRING);
         } else if (type.equals(Schema.Type.MAP)) {
             List<Schema.Field> keyValueRecord = Lists.newArrayList(
                 new Schema.Field("key", Schema.create(Schema.Type.STRING), null, null),
@@ -86,10 +143,20 @@ public class SchemaConverter {
                 return convertField(fieldName, nonNullSchemas.get(0));
 
             default:
-                return convertField(fieldName, nonNullSchemas.get(0));
+                return complex(fieldName, TRECORD, TNULLABLE, convertBranches(schema));
         }
     }
 
+    private String convertBranches(Schema union) {
+        List<String> branches = new ArrayList<>();
+        for (Schema branch : union.getTypes()) {
+            if (!branch.getType().equals(Schema.Type.NULL)) {
+                branches.add(convertField(branchName(union, branch), branch));
+            }
+        }
+        return StringUtils.join(branches, ",");
+    }
+
     private String convertField(Schema.Field field) {
         return convertField(field.name(), field.schema());
     }
@@ -111,7 +178,10 @@ public class SchemaConverter {
 
     private String typeFor(Schema schema) {
         Schema.Type type = schema.getType();
-        if (type.equals(Schema.Type.BOOLEAN)) {
+        LogicalType logicalType = LogicalType.of(schema);
+        if (logicalType != null) {
+            return logicalType.bigQueryType(schema);
+        } else if (type.equals(Schema.Type.BOOLEAN)) {
             return TBOOLEAN;
         } else if (type.equals(Schema.Type.INT) || type.equals(Schema.Type.LONG)) {
             return TINTEGER;
@@ -119,8 +189,12 @@ public class SchemaConverter {
             return TFLOAT;
         } else if (type.equals(Schema.Type.STRING) || type.equals(Schema.Type.ENUM)) {
             return TSTRING;
+        } else if (type.equals(Schema.Type.BYTES) || type.equals(Schema.Type.FIXED)) {
+            return TBYTES;
         } else if (type.equals(Schema.Type.RECORD)) {
             return TRECORD;
+        } else if (type.equals(Schema.Type.MAP) && maps.equals(MapEncoding.JSON)) {
+            return TSTRING;
         } else if (type.equals(Schema.Type.UNION)) {
             for (Schema childSchema : schema.getTypes()) {
                 if (!childSchema.getType().equals(Schema.Type.NULL)) {
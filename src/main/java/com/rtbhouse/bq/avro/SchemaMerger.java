@@ -0,0 +1,223 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.mapred.FsInput;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.NullNode;
+
+/**
+ * Merges evolving versions of a record schema into one target schema every version resolves to.
+ * Fields keep the order they first appear in, fields missing from some versions become nullable
+ * with a null default unless they have a default already, numbers are promoted like Avro schema
+ * resolution does and enum symbols are joined. Anything else differing in type is an error.
+ */
+final class SchemaMerger {
+
+    private static final List<Schema.Type> NUMBERS
+        = Arrays.asList(Schema.Type.INT, Schema.Type.LONG, Schema.Type.FLOAT, Schema.Type.DOUBLE);
+
+    private final Map<String, Schema> records = new HashMap<>();
+
+    private SchemaMerger() {
+    }
+
+    /**
+     * Merges the schemas, the first one deciding field order, docs and defaults. Null schemas are
+     * ignored.
+     */
+    static Schema merge(List<Schema> schemas) {
+        SchemaMerger merger = new SchemaMerger();
+        Schema merged = null;
+        for (Schema schema : schemas) {
+            if (schema != null) {
+                merged = merged == null ? schema : merger.merge(merged, schema);
+                merger.records.clear();
+            }
+        }
+        if (merged == null) {
+            throw new IllegalArgumentException("No schemas to merge");
+        }
+        return merged;
+    }
+
+    /**
+     * The distinct writer schemas of all Avro files under the given paths, see
+     * {@link InputFiles#list(Configuration, List)}.
+     */
+    static List<Schema> writerSchemas(Configuration conf, List<Path> paths) throws IOException {
+        Set<Schema> schemas = new LinkedHashSet<>();
+        for (FileStatus file : InputFiles.list(conf, paths)) {
+            try (DataFileReader<Object> reader = new DataFileReader<>(new FsInput(file.getPath(), conf), new GenericDatumReader<>())) {
+                schemas.add(reader.getSchema());
+            }
+        }
+        return new ArrayList<>(schemas);
+    }
+
+    private Schema merge(Schema a, Schema b) {
+        if (a.equals(b)) {
+            return a;
+        }
+        Schema.Type type = a.getType();
+        if (type.equals(Schema.Type.UNION) || b.getType().equals(Schema.Type.UNION)) {
+            return mergeUnion(a, b);
+        } else if (NUMBERS.contains(type) && NUMBERS.contains(b.getType())) {
+            // int promotes to long, float and double, long to float and double, float to double
+            return NUMBERS.indexOf(type) >= NUMBERS.indexOf(b.getType()) ? a : b;
+        } else if (!type.equals(b.getType()) || !sameName(a, b)) {
+            throw new IllegalArgumentException("Cannot merge " + a + " with " + b);
+        }
+        switch (type) {
+            case RECORD:
+                return mergeRecord(a, b);
+            case ARRAY:
+                return Schema.createArray(merge(a.getElementType(), b.getElementType()));
+            case MAP:
+                return Schema.createMap(merge(a.getValueType(), b.getValueType()));
+            case ENUM:
+                Set<String> symbols = new LinkedHashSet<>(a.getEnumSymbols());
+                symbols.addAll(b.getEnumSymbols());
+                return Schema.createEnum(a.getName(), a.getDoc(), a.getNamespace(), new ArrayList<>(symbols));
+            case FIXED:
+                if (a.getFixedSize() != b.getFixedSize()) {
+                    throw new IllegalArgumentException("Cannot merge " + a + " with " + b);
+                }
+                return a;
+            default:
+                // same primitive type, differing only in properties
+                return a;
+        }
+    }
+
+    private Schema mergeRecord(Schema a, Schema b) {
+        Schema merged = records.get(a.getFullName());
+        if (merged != null) {
+            // a recursive reference to the record being merged
+            return merged;
+        }
+        merged = Schema.createRecord(a.getName(), a.getDoc(), a.getNamespace(), a.isError());
+        for (Map.Entry<String, JsonNode> prop : a.getJsonProps().entrySet()) {
+            merged.addProp(prop.getKey(), prop.getValue());
+        }
+        records.put(a.getFullName(), merged);
+
+        Map<String, Schema.Field> fields = new LinkedHashMap<>();
+        for (Schema.Field field : a.getFields()) {
+            Schema.Field other = b.getField(field.name());
+            fields.put(field.name(), other == null ? optional(field) : mergeField(field, other));
+        }
+        for (Schema.Field field : b.getFields()) {
+            if (!fields.containsKey(field.name())) {
+                fields.put(field.name(), optional(field));
+            }
+        }
+        merged.setFields(new ArrayList<>(fields.values()));
+        return merged;
+    }
+
+    private Schema.Field mergeField(Schema.Field a, Schema.Field b) {
+        Schema merged = merge(a.schema(), b.schema());
+        if (merged.equals(a.schema())) {
+            return copy(a, merged, a.defaultValue());
+        } else if (merged.equals(b.schema())) {
+            return copy(a, merged, b.defaultValue());
+        }
+        boolean nullFirst = merged.getType().equals(Schema.Type.UNION)
+            && merged.getTypes().get(0).getType().equals(Schema.Type.NULL);
+        return copy(a, merged, nullFirst ? NullNode.getInstance() : null);
+    }
+
+    /**
+     * The field of a version missing it in another, which then reads its default.
+     */
+    private static Schema.Field optional(Schema.Field field) {
+        if (field.defaultValue() != null) {
+            return copy(field, field.schema(), field.defaultValue());
+        }
+        List<Schema> types = new ArrayList<>();
+        types.add(Schema.create(Schema.Type.NULL));
+        if (field.schema().getType().equals(Schema.Type.UNION)) {
+            for (Schema type : field.schema().getTypes()) {
+                if (!type.getType().equals(Schema.Type.NULL)) {
+                    types.add(type);
+                }
+            }
+        } else {
+            types.add(field.schema());
+        }
+        return copy(field, Schema.createUnion(types), NullNode.getInstance());
+    }
+
+    private Schema mergeUnion(Schema a, Schema b) {
+        // branches are matched by name for named types, by type for the others, numbers merge
+        Map<String, Schema> branches = new LinkedHashMap<>();
+        for (Schema schema : Arrays.asList(a, b)) {
+            List<Schema> types = schema.getType().equals(Schema.Type.UNION) ? schema.getTypes() : Arrays.asList(schema);
+            for (Schema type : types) {
+                String key = branchKey(type);
+                Schema branch = branches.get(key);
+                branches.put(key, branch == null ? type : merge(branch, type));
+            }
+        }
+        List<Schema> types = new ArrayList<>();
+        // null goes first, so that it can be the default
+        Schema nullBranch = branches.remove(Schema.Type.NULL.getName());
+        if (nullBranch != null) {
+            types.add(nullBranch);
+        }
+        types.addAll(branches.values());
+        return Schema.createUnion(types);
+    }
+
+    private static String branchKey(Schema schema) {
+        switch (schema.getType()) {
+            case RECORD:
+            case ENUM:
+            case FIXED:
+                return schema.getFullName();
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                return "number";
+            default:
+                return schema.getType().getName();
+        }
+    }
+
+    private static boolean sameName(Schema a, Schema b) {
+        switch (a.getType()) {
+            case RECORD:
+            case ENUM:
+            case FIXED:
+                return a.getFullName().equals(b.getFullName());
+            default:
+                return true;
+        }
+    }
+
+    private static Schema.Field copy(Schema.Field field, Schema schema, JsonNode defaultValue) {
+        Schema.Field copy = new Schema.Field(field.name(), schema, field.doc(), defaultValue, field.order());
+        for (Map.Entry<String, JsonNode> prop : field.getJsonProps().entrySet()) {
+            copy.addProp(prop.getKey(), prop.getValue());
+        }
+        for (String alias : field.aliases()) {
+            copy.addAlias(alias);
+        }
+        return copy;
+    }
+}
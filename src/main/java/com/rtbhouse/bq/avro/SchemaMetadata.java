@@ -0,0 +1,111 @@
+package com.rtbhouse.bq.avro;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.SchemaParseException;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Metadata compiled from a record schema: the json writer, with the field order, pre-escaped keys
+ * and nullable union branches resolved, and the BigQuery schema. Compiled once per JVM for every
+ * schema fingerprint and column projection, and shared by all mappers and DoFns of the JVM since
+ * the compiled writers keep no state.
+ */
+final class SchemaMetadata {
+
+    static final String SCHEMA = "json.schema";
+
+    static final String FINGERPRINT = "json.schema.fingerprint";
+
+    private static final Map<Long, Schema> SCHEMAS = new ConcurrentHashMap<>();
+
+    private static final Map<List<Object>, SchemaMetadata> CACHE = new ConcurrentHashMap<>();
+
+    private final Schema schema;
+
+    private final Set<String> columns;
+
+    private final MapEncoding maps;
+
+    private final JsonWriter writer;
+
+    private volatile String bigQuerySchema;
+
+    private SchemaMetadata(Schema schema, Set<String> columns, MapEncoding maps) {
+        this.schema = schema;
+        this.columns = columns;
+        this.maps = maps;
+        this.writer = JsonWriters.compile(schema, columns, maps);
+    }
+
+    static SchemaMetadata of(Schema schema) {
+        return of(schema, null);
+    }
+
+    static SchemaMetadata of(Schema schema, Set<String> columns) {
+        return of(schema, columns, MapEncoding.RECORDS);
+    }
+
+    /**
+     * Metadata of the record schema reduced to the given top-level columns, all of them for null
+     * columns, with maps in the given encoding.
+     */
+    static SchemaMetadata of(Schema schema, Set<String> columns, MapEncoding maps) {
+        long fingerprint;
+        try {
+            fingerprint = fingerprint(schema);
+        } catch (SchemaParseException e) {
+            // clashing names, e.g. in a projection of a recursive record, leave nothing to fingerprint
+            return new SchemaMetadata(schema, columns, maps);
+        }
+        return CACHE.computeIfAbsent(Arrays.asList(fingerprint, columns, maps), key -> new SchemaMetadata(schema, columns, maps));
+    }
+
+    /**
+     * Fingerprint of the full schema json, unlike the parsing fingerprint it tells apart schemas
+     * differing only in properties.
+     */
+    static long fingerprint(Schema schema) {
+        return SchemaNormalization.fingerprint64(schema.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Stores the schema in the job configuration, for tasks to {@link #load(Configuration)} it.
+     */
+    static void store(Configuration conf, Schema schema) {
+        conf.set(SCHEMA, schema.toString());
+        conf.setLong(FINGERPRINT, fingerprint(schema));
+    }
+
+    /**
+     * The schema stored in the configuration, parsed only by the first task of a JVM.
+     */
+    static Schema load(Configuration conf) {
+        String json = conf.get(SCHEMA);
+        if (json == null) {
+            throw new IllegalStateException("No schema in the configuration under " + SCHEMA);
+        }
+        return SCHEMAS.computeIfAbsent(conf.getLong(FINGERPRINT, 0), fingerprint -> new Schema.Parser().parse(json));
+    }
+
+    Schema getSchema() {
+        return schema;
+    }
+
+    JsonWriter getWriter() {
+        return writer;
+    }
+
+    String getBigQuerySchema() {
+        if (bigQuerySchema == null) {
+            bigQuerySchema = new SchemaConverter(maps).convert(Projection.project(schema, columns));
+        }
+        return bigQuerySchema;
+    }
+}
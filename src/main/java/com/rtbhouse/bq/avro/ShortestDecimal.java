@@ -0,0 +1,252 @@
+package com.rtbhouse.bq.avro;
+
+import java.math.BigInteger;
+
+/**
+ * Shortest decimal which parses back to a given double or float, the closest one if several are
+ * equally short, found with the Ryu algorithm of Ulf Adams (https://github.com/ulfjack/ryu)
+ * without allocating. Keeps the result of the last conversion, so it is not thread-safe.
+ */
+final class ShortestDecimal {
+
+    private static final int DOUBLE_MANTISSA_BITS = 52;
+
+    private static final int DOUBLE_EXPONENT_BITS = 11;
+
+    private static final int FLOAT_MANTISSA_BITS = 23;
+
+    private static final int FLOAT_EXPONENT_BITS = 8;
+
+    private static final int POW5_BITCOUNT = 125;
+
+    private static final int POW5_INV_BITCOUNT = 125;
+
+    private static final int POW5_TABLE_SIZE = 326;
+
+    private static final int POW5_INV_TABLE_SIZE = 342;
+
+    /** 5^i cut to its top 125 bits, as pairs of the low and the high long. */
+    private static final long[] POW5_SPLIT = new long[2 * POW5_TABLE_SIZE];
+
+    /** 2^(bit length of 5^i - 1 + 125) / 5^i rounded up, as pairs of the low and the high long. */
+    private static final long[] POW5_INV_SPLIT = new long[2 * POW5_INV_TABLE_SIZE];
+
+    static {
+        BigInteger low = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+        for (int i = 0; i < POW5_INV_TABLE_SIZE; i++) {
+            BigInteger pow5 = BigInteger.valueOf(5).pow(i);
+            int pow5Length = pow5.bitLength();
+            if (i < POW5_TABLE_SIZE) {
+                BigInteger split = pow5Length > POW5_BITCOUNT
+                    ? pow5.shiftRight(pow5Length - POW5_BITCOUNT) : pow5.shiftLeft(POW5_BITCOUNT - pow5Length);
+                POW5_SPLIT[2 * i] = split.and(low).longValue();
+                POW5_SPLIT[2 * i + 1] = split.shiftRight(64).longValue();
+            }
+            BigInteger inverse = BigInteger.ONE.shiftLeft(pow5Length - 1 + POW5_INV_BITCOUNT).divide(pow5).add(BigInteger.ONE);
+            POW5_INV_SPLIT[2 * i] = inverse.and(low).longValue();
+            POW5_INV_SPLIT[2 * i + 1] = inverse.shiftRight(64).longValue();
+        }
+    }
+
+    private long digits;
+
+    private int exponent;
+
+    /**
+     * Decimal digits of the last conversion, without trailing zeros unless the value is a whole
+     * number, e.g. 125 for 1.25.
+     */
+    long getDigits() {
+        return digits;
+    }
+
+    /**
+     * Power of ten the digits are scaled by, e.g. -2 for 1.25.
+     */
+    int getExponent() {
+        return exponent;
+    }
+
+    /**
+     * Converts the absolute value of a finite, non-zero double.
+     */
+    void convert(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        convert(bits & ((1L << DOUBLE_MANTISSA_BITS) - 1), (int) (bits >>> DOUBLE_MANTISSA_BITS) & ((1 << DOUBLE_EXPONENT_BITS) - 1),
+            DOUBLE_MANTISSA_BITS, (1 << (DOUBLE_EXPONENT_BITS - 1)) - 1);
+    }
+
+    /**
+     * Converts the absolute value of a finite, non-zero float.
+     */
+    void convert(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        convert(bits & ((1 << FLOAT_MANTISSA_BITS) - 1), (bits >>> FLOAT_MANTISSA_BITS) & ((1 << FLOAT_EXPONENT_BITS) - 1),
+            FLOAT_MANTISSA_BITS, (1 << (FLOAT_EXPONENT_BITS - 1)) - 1);
+    }
+
+    private void convert(long ieeeMantissa, int ieeeExponent, int mantissaBits, int bias) {
+        // the value is m2 * 2^e2, with two more bits of the exponent moved to the mantissa so that
+        // the halfway points to its neighbours are whole numbers
+        int e2;
+        long m2;
+        if (ieeeExponent == 0) {
+            e2 = 1 - bias - mantissaBits - 2;
+            m2 = ieeeMantissa;
+        } else {
+            e2 = ieeeExponent - bias - mantissaBits - 2;
+            m2 = (1L << mantissaBits) | ieeeMantissa;
+        }
+        boolean acceptBounds = (m2 & 1) == 0;
+        long mv = 4 * m2;
+        // the lower neighbour is closer when the mantissa is a power of two
+        int mmShift = ieeeMantissa != 0 || ieeeExponent <= 1 ? 1 : 0;
+
+        // the value and its halfway points to the neighbours, scaled by a power of ten
+        long vr;
+        long vp;
+        long vm;
+        int e10;
+        boolean vmIsTrailingZeros = false;
+        boolean vrIsTrailingZeros = false;
+        if (e2 >= 0) {
+            int q = log10Pow2(e2) - (e2 > 3 ? 1 : 0);
+            e10 = q;
+            int k = POW5_INV_BITCOUNT + pow5Bits(q) - 1;
+            int i = -e2 + q + k;
+            vr = mulShift(mv, POW5_INV_SPLIT, q, i);
+            vp = mulShift(mv + 2, POW5_INV_SPLIT, q, i);
+            vm = mulShift(mv - 1 - mmShift, POW5_INV_SPLIT, q, i);
+            if (q <= 21) {
+                // only a multiple of 5^q loses nothing in the division, at most one of the three is
+                if (mv % 5 == 0) {
+                    vrIsTrailingZeros = multipleOfPowerOf5(mv, q);
+                } else if (acceptBounds) {
+                    vmIsTrailingZeros = multipleOfPowerOf5(mv - 1 - mmShift, q);
+                } else if (multipleOfPowerOf5(mv + 2, q)) {
+                    vp--;
+                }
+            }
+        } else {
+            int q = log10Pow5(-e2) - (-e2 > 1 ? 1 : 0);
+            e10 = q + e2;
+            int i = -e2 - q;
+            int k = pow5Bits(i) - POW5_BITCOUNT;
+            int j = q - k;
+            vr = mulShift(mv, POW5_SPLIT, i, j);
+            vp = mulShift(mv + 2, POW5_SPLIT, i, j);
+            vm = mulShift(mv - 1 - mmShift, POW5_SPLIT, i, j);
+            if (q <= 1) {
+                // mv has at least two trailing zero bits
+                vrIsTrailingZeros = true;
+                if (acceptBounds) {
+                    vmIsTrailingZeros = mmShift == 1;
+                } else {
+                    vp--;
+                }
+            } else if (q < 63) {
+                vrIsTrailingZeros = (mv & ((1L << q) - 1)) == 0;
+            }
+        }
+
+        // drops digits while the interval between the neighbours still holds a shorter number
+        int removed = 0;
+        int lastRemovedDigit = 0;
+        long output;
+        if (vmIsTrailingZeros || vrIsTrailingZeros) {
+            while (vp / 10 > vm / 10) {
+                vmIsTrailingZeros &= vm % 10 == 0;
+                vrIsTrailingZeros &= lastRemovedDigit == 0;
+                lastRemovedDigit = (int) (vr % 10);
+                vr /= 10;
+                vp /= 10;
+                vm /= 10;
+                removed++;
+            }
+            if (vmIsTrailingZeros) {
+                while (vm % 10 == 0) {
+                    vrIsTrailingZeros &= lastRemovedDigit == 0;
+                    lastRemovedDigit = (int) (vr % 10);
+                    vr /= 10;
+                    vp /= 10;
+                    vm /= 10;
+                    removed++;
+                }
+            }
+            if (vrIsTrailingZeros && lastRemovedDigit == 5 && vr % 2 == 0) {
+                // exactly halfway, rounds to even
+                lastRemovedDigit = 4;
+            }
+            output = vr + ((vr == vm && (!acceptBounds || !vmIsTrailingZeros)) || lastRemovedDigit >= 5 ? 1 : 0);
+        } else {
+            boolean roundUp = false;
+            while (vp / 10 > vm / 10) {
+                roundUp = vr % 10 >= 5;
+                vr /= 10;
+                vp /= 10;
+                vm /= 10;
+                removed++;
+            }
+            output = vr + (vr == vm || roundUp ? 1 : 0);
+        }
+        digits = output;
+        exponent = e10 + removed;
+    }
+
+    /**
+     * The 64 bits of m times the 128 bit table entry, shifted right by the given count.
+     */
+    private static long mulShift(long m, long[] table, int index, int shift) {
+        long multiplierLow = table[2 * index];
+        long multiplierHigh = table[2 * index + 1];
+        long low = unsignedMultiplyHigh(m, multiplierLow);
+        long productLow = m * multiplierHigh;
+        long high = unsignedMultiplyHigh(m, multiplierHigh);
+        long sum = low + productLow;
+        if (Long.compareUnsigned(sum, low) < 0) {
+            high++;
+        }
+        int distance = shift - 64;
+        if (distance == 0) {
+            return sum;
+        } else if (distance < 64) {
+            return (sum >>> distance) | (high << (64 - distance));
+        }
+        return high >>> (distance - 64);
+    }
+
+    private static long unsignedMultiplyHigh(long x, long y) {
+        long x1 = x >>> 32;
+        long x0 = x & 0xFFFFFFFFL;
+        long y1 = y >>> 32;
+        long y0 = y & 0xFFFFFFFFL;
+        long p00 = x0 * y0;
+        long p01 = x0 * y1;
+        long p10 = x1 * y0;
+        long middle = (p00 >>> 32) + (p01 & 0xFFFFFFFFL) + (p10 & 0xFFFFFFFFL);
+        return x1 * y1 + (p01 >>> 32) + (p10 >>> 32) + (middle >>> 32);
+    }
+
+    private static boolean multipleOfPowerOf5(long value, int p) {
+        int count = 0;
+        for (; value % 5 == 0 && count < p; value /= 5) {
+            count++;
+        }
+        return count >= p;
+    }
+
+    /** Bit length of 5^e, for 0 <= e <= 3528. */
+    private static int pow5Bits(int e) {
+        return (int) ((e * 1217359L) >>> 19) + 1;
+    }
+
+    /** floor(log10(2^e)), for 0 <= e <= 1650. */
+    private static int log10Pow2(int e) {
+        return (int) ((e * 78913L) >>> 18);
+    }
+
+    /** floor(log10(5^e)), for 0 <= e <= 2620. */
+    private static int log10Pow5(int e) {
+        return (int) ((e * 732923L) >>> 20);
+    }
+}
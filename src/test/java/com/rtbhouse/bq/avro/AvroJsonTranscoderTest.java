@@ -0,0 +1,163 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import junit.framework.Assert;
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.file.SeekableFileInput;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.util.Utf8;
+import org.junit.Test;
+
+public class AvroJsonTranscoderTest {
+
+    @Test
+    public void transcodeTest() throws IOException {
+        Schema schema = new Schema.Parser().parse(
+            new File(getClass().getResource("/avroschema.avsc").getFile()));
+        assertTranscoded(JsonBuilderTest.user(schema));
+        for (GenericRecord mixed : mixed(10)) {
+            assertTranscoded(mixed);
+        }
+        assertTranscoded(JsonBuilderTest.logical(17000, 1468800000000L, null, BigDecimal.ONE, new BigDecimal("-0.5")));
+    }
+
+    @Test
+    public void mapEncodingTest() throws IOException {
+        // records inside a json map have their maps as plain objects
+        Schema schema = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"Outer\", \"fields\": ["
+            + "{\"name\": \"inner\", \"type\": {\"type\": \"map\", \"values\": " + JsonBuilderTest.mixedSchema + "}},"
+            + "{\"name\": \"mixed\", \"type\": \"Mixed\"}]}");
+        List<GenericRecord> mixed = mixed(10);
+        Map<Utf8, GenericRecord> inner = new LinkedHashMap<>();
+        inner.put(new Utf8("x"), mixed.get(5));
+        inner.put(new Utf8("y/\n"), mixed.get(6));
+        GenericRecord record = new GenericData.Record(schema);
+        record.put("inner", inner);
+        record.put("mixed", mixed.get(7));
+        for (MapEncoding maps : Arrays.asList(MapEncoding.RECORDS, MapEncoding.JSON)) {
+            JsonOutput output = new JsonOutput();
+            new AvroJsonTranscoder(schema, null, maps).transcode(DecoderFactory.get().binaryDecoder(encode(record), null), output);
+            Assert.assertEquals(new JsonBuilder(schema, null, maps).build(record), output.toString());
+        }
+    }
+
+    @Test
+    public void projectionTest() throws IOException {
+        Set<String> columns = new HashSet<>(Arrays.asList("weight", "value", "next"));
+        Schema projection = Projection.project(JsonBuilderTest.mixedSchema, columns);
+        JsonBuilder jsonBuilder = new JsonBuilder(projection);
+        AvroJsonTranscoder transcoder = new AvroJsonTranscoder(JsonBuilderTest.mixedSchema, columns);
+        for (GenericRecord record : mixed(10)) {
+            byte[] bytes = encode(record);
+            GenericRecord projected = new GenericDatumReader<GenericRecord>(JsonBuilderTest.mixedSchema, projection)
+                .read(null, DecoderFactory.get().binaryDecoder(bytes, null));
+            BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(bytes, null);
+            JsonOutput output = new JsonOutput();
+            transcoder.transcode(decoder, output);
+            Assert.assertTrue(decoder.isEnd());
+            Assert.assertEquals(jsonBuilder.build(projected), output.toString());
+            Assert.assertEquals(jsonBuilder.build(projected),
+                new JsonBuilder(JsonBuilderTest.mixedSchema, columns).build(record));
+        }
+    }
+
+    @Test
+    public void blockReaderTest() throws IOException {
+        List<GenericRecord> records = mixed(1000);
+        File file = File.createTempFile("mixed", ".avro");
+        file.deleteOnExit();
+        DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(JsonBuilderTest.mixedSchema));
+        writer.setSyncInterval(2048);
+        writer.setCodec(CodecFactory.deflateCodec(1));
+        writer.create(JsonBuilderTest.mixedSchema, file);
+        for (GenericRecord record : records) {
+            writer.append(record);
+        }
+        writer.close();
+
+        // two splits meeting in the middle of the file read every datum exactly once
+        long middle = file.length() / 2;
+        List<String> json = new ArrayList<>();
+        readSplit(file, 0, middle, json);
+        readSplit(file, middle, file.length(), json);
+
+        Assert.assertEquals(records.size(), json.size());
+        JsonBuilder jsonBuilder = new JsonBuilder(JsonBuilderTest.mixedSchema);
+        for (int i = 0; i < records.size(); i++) {
+            Assert.assertEquals(jsonBuilder.build(records.get(i)), json.get(i));
+        }
+    }
+
+    private void readSplit(File file, long start, long end, List<String> json) throws IOException {
+        JsonOutput output = new JsonOutput();
+        BinaryDecoder decoder = null;
+        try (AvroBlockReader reader = new AvroBlockReader(new SeekableFileInput(file), start, end)) {
+            AvroJsonTranscoder transcoder = new AvroJsonTranscoder(reader.getSchema());
+            for (ByteBuffer block = reader.nextBlockInSplit(); block != null; block = reader.nextBlockInSplit()) {
+                decoder = DecoderFactory.get().binaryDecoder(
+                    block.array(), block.arrayOffset() + block.position(), block.remaining(), decoder);
+                for (long i = reader.getBlockCount(); i > 0; i--) {
+                    output.reset();
+                    transcoder.transcode(decoder, output);
+                    json.add(output.toString());
+                }
+                Assert.assertTrue(decoder.isEnd());
+            }
+        }
+    }
+
+    private void assertTranscoded(GenericRecord record) throws IOException {
+        JsonOutput output = new JsonOutput();
+        new AvroJsonTranscoder(record.getSchema()).transcode(
+            DecoderFactory.get().binaryDecoder(encode(record), null), output);
+        Assert.assertEquals(new JsonBuilder().build(record), output.toString());
+    }
+
+    private static byte[] encode(GenericRecord record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(bytes, null);
+        new GenericDatumWriter<GenericRecord>(record.getSchema()).write(record, encoder);
+        encoder.flush();
+        return bytes.toByteArray();
+    }
+
+    static List<GenericRecord> mixed(int count) {
+        List<GenericRecord> records = new ArrayList<>();
+        GenericRecord previous = null;
+        for (int i = 0; i < count; i++) {
+            Map<Utf8, Long> attributes = new LinkedHashMap<>();
+            for (int j = 0; j < i % 4; j++) {
+                attributes.put(new Utf8("k\u0085\u2010/" + j), (long) i * j);
+            }
+            GenericRecord record = new GenericData.Record(JsonBuilderTest.mixedSchema);
+            record.put("ratio", i % 7 == 0 ? Double.NaN : i / 3.0);
+            record.put("weight", (float) i / 7);
+            record.put("attributes", attributes);
+            record.put("value", i % 3 == 0 ? null : i % 3 == 1 ? (Object) (long) i : "za\u017c\u00f3\u0142\u0107 \"" + i + "\"\t\u0001");
+            record.put("next", i % 5 == 0 ? previous : null);
+            records.add(record);
+            previous = i % 5 == 0 ? null : record;
+        }
+        return records;
+    }
+}
@@ -0,0 +1,97 @@
+package com.rtbhouse.bq.avro;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.Assert;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.junit.Test;
+
+public class AvroSplitPlannerTest {
+
+    private static final long MB = 1024 * 1024L;
+
+    @Test
+    public void planTest() throws Exception {
+        List<AvroSplitPlanner.Chunk> chunks = new ArrayList<>();
+        Map<Path, Long> sizes = new HashMap<>();
+        // one huge file on host1 and a lot of tiny files spread over two racks
+        Path huge = new Path("/in/huge.avro");
+        sizes.put(huge, 1000 * MB);
+        chunks.addAll(AvroSplitPlanner.chunks(huge, 0, 1000 * MB, blocks(1000 * MB, 128 * MB, "host1", "/rack1"), 100 * MB));
+        for (int i = 0; i < 200; i++) {
+            Path tiny = new Path("/in/tiny-" + i + ".avro");
+            String host = "host" + (i % 4);
+            sizes.put(tiny, MB);
+            chunks.addAll(AvroSplitPlanner.chunks(tiny, 0, MB, blocks(MB, 128 * MB, host, i % 4 < 2 ? "/rack1" : "/rack2"), 100 * MB));
+        }
+
+        List<InputSplit> splits = AvroSplitPlanner.plan(chunks, 100 * MB);
+        Map<Path, Long> covered = new HashMap<>();
+        for (InputSplit split : splits) {
+            CombineFileSplit combined = (CombineFileSplit) split;
+            Assert.assertTrue(combined.getLength() <= 100 * MB);
+            Assert.assertTrue(combined.getLocations().length > 0);
+            for (int i = 0; i < combined.getNumPaths(); i++) {
+                covered.merge(combined.getPath(i), combined.getLength(i), Long::sum);
+            }
+        }
+        Assert.assertEquals(sizes, covered);
+        // the huge file in ten splits, the tiny ones on each of the four hosts in one
+        Assert.assertEquals(14, splits.size());
+        for (InputSplit split : splits) {
+            CombineFileSplit combined = (CombineFileSplit) split;
+            if (combined.getPath(0).equals(huge)) {
+                Assert.assertEquals(1, combined.getNumPaths());
+                Assert.assertEquals("host1", combined.getLocations()[0]);
+            } else {
+                Assert.assertEquals(50, combined.getNumPaths());
+                Assert.assertEquals(1, combined.getLocations().length);
+            }
+        }
+    }
+
+    @Test
+    public void replicaTest() throws Exception {
+        // every block has its first replica on host0 and its second one on one of four other hosts
+        List<AvroSplitPlanner.Chunk> chunks = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String other = "host" + (1 + i % 4);
+            BlockLocation block = new BlockLocation(new String[] {"host0:50010", other + ":50010"}, new String[] {"host0", other},
+                new String[] {"/rack1/host0:50010", "/rack2/" + other + ":50010"}, 0, 100 * MB);
+            chunks.addAll(AvroSplitPlanner.chunks(new Path("/in/part-" + i + ".avro"), 0, 100 * MB, new BlockLocation[] {block}, 100 * MB));
+        }
+
+        Map<String, Integer> splitsPerHost = new HashMap<>();
+        for (InputSplit split : AvroSplitPlanner.plan(chunks, 100 * MB)) {
+            String[] locations = split.getLocations();
+            Assert.assertEquals(2, locations.length);
+            splitsPerHost.merge(locations[0], 1, Integer::sum);
+        }
+        Assert.assertEquals(5, splitsPerHost.size());
+        for (int splits : splitsPerHost.values()) {
+            Assert.assertEquals(4, splits);
+        }
+    }
+
+    @Test
+    public void targetSizeTest() {
+        Assert.assertEquals(512 * MB, AvroSplitPlanner.targetSize(10000 * MB, 10, 0, 512 * MB, 16 * MB));
+        Assert.assertEquals(100 * MB, AvroSplitPlanner.targetSize(10000 * MB, 10, 10, 512 * MB, 16 * MB));
+        Assert.assertEquals(16 * MB, AvroSplitPlanner.targetSize(100 * MB, 10, 10, 512 * MB, 16 * MB));
+        Assert.assertEquals(MB, AvroSplitPlanner.targetSize(100 * MB, 10, 10, MB, 16 * MB));
+    }
+
+    private static BlockLocation[] blocks(long length, long blockSize, String host, String rack) {
+        List<BlockLocation> blocks = new ArrayList<>();
+        for (long offset = 0; offset < length; offset += blockSize) {
+            blocks.add(new BlockLocation(new String[] {host + ":50010"}, new String[] {host},
+                new String[] {rack + "/" + host + ":50010"}, offset, Math.min(blockSize, length - offset)));
+        }
+        return blocks.toArray(new BlockLocation[blocks.size()]);
+    }
+}
@@ -0,0 +1,92 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import junit.framework.Assert;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.util.Utf8;
+import org.junit.Test;
+
+public class BigQueryAvroTest {
+
+    private static final Schema listSchema = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"Lists\", \"fields\": ["
+        + "{\"name\": \"tags\", \"type\": {\"type\": \"array\", \"items\": [\"null\", \"string\"]}},"
+        + "{\"name\": \"values\", \"type\": {\"type\": \"array\", \"items\": [\"int\", \"string\"]}}]}");
+
+    @Test
+    public void schemaTest() throws IOException {
+        Schema schema = new BigQueryAvro(JsonBuilderTest.mixedSchema, new LinkedHashSet<>(Arrays.asList("weight", "attributes", "value"))).getSchema();
+        Assert.assertEquals("[\"weight\", \"attributes\", \"value\"]", fieldNames(schema));
+        Schema entry = schema.getField("attributes").schema().getElementType();
+        Assert.assertEquals("[\"key\", \"value\"]", fieldNames(entry));
+        Schema value = schema.getField("value").schema();
+        Assert.assertEquals(Schema.Type.NULL, value.getTypes().get(0).getType());
+        Assert.assertEquals("[\"long\", \"string\"]", fieldNames(value.getTypes().get(1)));
+
+        Schema lists = new BigQueryAvro(listSchema, null).getSchema();
+        Assert.assertEquals(Schema.Type.STRING, lists.getField("tags").schema().getElementType().getType());
+        Assert.assertEquals(Schema.Type.RECORD, lists.getField("values").schema().getElementType().getType());
+
+        // nothing to rewrite, records pass through as they are
+        Schema user = new Schema.Parser().parse(getClass().getResourceAsStream("/avroschema.avsc"));
+        Assert.assertSame(user, new BigQueryAvro(user, null).getSchema());
+        GenericRecord record = JsonBuilderTest.user(user);
+        Assert.assertSame(record, new BigQueryAvro(user, null).convert(record));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void recursiveTest() {
+        new BigQueryAvro(JsonBuilderTest.mixedSchema, null);
+    }
+
+    @Test
+    public void convertTest() throws IOException {
+        Map<Utf8, Long> attributes = new LinkedHashMap<>();
+        attributes.put(new Utf8("a"), 1L);
+        attributes.put(new Utf8("b"), 2L);
+        GenericRecord mixed = new GenericData.Record(JsonBuilderTest.mixedSchema);
+        mixed.put("ratio", 1.25);
+        mixed.put("weight", 2f);
+        mixed.put("attributes", attributes);
+        mixed.put("value", 42L);
+        BigQueryAvro bigQuery = new BigQueryAvro(JsonBuilderTest.mixedSchema, new LinkedHashSet<>(Arrays.asList("weight", "attributes", "value")));
+        GenericRecord converted = roundTrip(bigQuery.convert(mixed));
+        Assert.assertEquals("{\"weight\": 2.0, \"attributes\": [{\"key\": \"a\", \"value\": 1}, {\"key\": \"b\", \"value\": 2}], "
+            + "\"value\": {\"long\": 42}}", new JsonBuilder(converted.getSchema()).build(converted));
+
+        GenericRecord lists = new GenericData.Record(listSchema);
+        lists.put("tags", Arrays.asList(new Utf8("a"), null, new Utf8("b")));
+        lists.put("values", Arrays.asList(1, new Utf8("c")));
+        converted = roundTrip(new BigQueryAvro(listSchema, null).convert(lists));
+        Assert.assertEquals("{\"tags\": [\"a\", \"b\"], \"values\": [{\"int\": 1}, {\"string\": \"c\"}]}",
+            new JsonBuilder(converted.getSchema()).build(converted));
+    }
+
+    private static GenericRecord roundTrip(GenericRecord record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(bytes, null);
+        new GenericDatumWriter<GenericRecord>(record.getSchema()).write(record, encoder);
+        encoder.flush();
+        return new GenericDatumReader<GenericRecord>(record.getSchema())
+            .read(null, DecoderFactory.get().binaryDecoder(bytes.toByteArray(), null));
+    }
+
+    private static String fieldNames(Schema record) {
+        StringBuilder names = new StringBuilder();
+        for (Schema.Field field : record.getFields()) {
+            names.append(names.length() == 0 ? "[\"" : ", \"").append(field.name()).append('"');
+        }
+        return names.append(']').toString();
+    }
+}
@@ -0,0 +1,113 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.Assert;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Test;
+
+public class BlockParallelMapperTest {
+
+    @Test
+    public void orderTest() throws Exception {
+        Schema schema = new Schema.Parser().parse(getClass().getResourceAsStream("/avroschema.avsc"));
+        File file = File.createTempFile("users", ".avro");
+        file.deleteOnExit();
+        JsonBuilder jsonBuilder = new JsonBuilder(schema);
+        List<String> expected = new ArrayList<>();
+        DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schema));
+        writer.setSyncInterval(2048);
+        writer.create(schema, file);
+        for (int i = 0; i < 3000; i++) {
+            GenericRecord user = JsonBuilderTest.user(schema);
+            user.put("id", i);
+            user.put("username", new Utf8("user" + i));
+            writer.append(user);
+            expected.add(jsonBuilder.build(user));
+        }
+        writer.close();
+
+        // the serial path and the threaded one write the rows of the record path in input order
+        for (int threads : new int[] {1, 4}) {
+            Counters counters = new Counters();
+            Assert.assertEquals(expected, map(schema, file, threads, counters));
+            Assert.assertEquals(expected.size(), counters.findCounter(ConversionStats.Counters.RECORDS_OUT).getValue());
+        }
+    }
+
+    private static List<String> map(Schema schema, File file, int threads, Counters counters) throws IOException, InterruptedException {
+        Configuration conf = new Configuration();
+        conf.setInt(BlockParallelMapper.THREADS, threads);
+        SchemaMetadata.store(conf, schema);
+        TaskAttemptID id = TaskAttemptID.forName("attempt_1_0001_m_000000_0");
+        FileSplit split = new FileSplit(new Path(file.toURI()), 0, file.length(), new String[0]);
+        AvroBlockRecordReader reader = new AvroBlockRecordReader();
+        reader.initialize(split, new TaskAttemptContextImpl(conf, id));
+        List<String> rows = new ArrayList<>();
+        RecordWriter<Text, NullWritable> writer = new RecordWriter<Text, NullWritable>() {
+
+            @Override
+            public void write(Text json, NullWritable value) {
+                // a block is written as one chunk of newline separated rows
+                rows.addAll(Arrays.asList(json.toString().split("\n")));
+            }
+
+            @Override
+            public void close(TaskAttemptContext context) {
+            }
+        };
+        new BlockParallelMapper().run(new WrappedMapper<AvroBlock, NullWritable, Text, NullWritable>()
+            .getMapContext(new MapContextImpl<>(conf, id, reader, writer, null, reporter(counters), split)));
+        reader.close();
+        return rows;
+    }
+
+    static StatusReporter reporter(Counters counters) {
+        return new StatusReporter() {
+
+            @Override
+            public Counter getCounter(Enum<?> name) {
+                return counters.findCounter(name);
+            }
+
+            @Override
+            public Counter getCounter(String group, String name) {
+                return counters.findCounter(group, name);
+            }
+
+            @Override
+            public void progress() {
+            }
+
+            @Override
+            public float getProgress() {
+                return 0;
+            }
+
+            @Override
+            public void setStatus(String status) {
+            }
+        };
+    }
+}
@@ -0,0 +1,63 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import junit.framework.Assert;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Test;
+
+public class CombineAvroRecordReaderTest {
+
+    @Test
+    public void reuseTest() throws IOException {
+        List<GenericRecord> records = AvroJsonTranscoderTest.mixed(500);
+        File file = File.createTempFile("mixed", ".avro");
+        file.deleteOnExit();
+        DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(JsonBuilderTest.mixedSchema));
+        writer.setSyncInterval(2048);
+        writer.create(JsonBuilderTest.mixedSchema, file);
+        for (GenericRecord record : records) {
+            writer.append(record);
+        }
+        writer.close();
+
+        Set<String> columns = new LinkedHashSet<>(Arrays.asList("ratio", "attributes", "value"));
+        Configuration conf = new Configuration();
+        SchemaMetadata.store(conf, Projection.project(JsonBuilderTest.mixedSchema, columns));
+        TaskAttemptContext context = new TaskAttemptContextImpl(conf, TaskAttemptID.forName("attempt_1_0001_m_000000_0"));
+        // the file cut in two and then whole again, one datum reader serves all three chunks
+        Path path = new Path(file.toURI());
+        long middle = file.length() / 2;
+        CombineFileSplit split = new CombineFileSplit(new Path[] {path, path, path},
+            new long[] {0, middle, 0}, new long[] {middle, file.length() - middle, file.length()}, new String[0]);
+
+        JsonBuilder jsonBuilder = new JsonBuilder(JsonBuilderTest.mixedSchema, columns);
+        CombineAvroRecordReader reader = new CombineAvroRecordReader();
+        reader.initialize(split, context);
+        GenericRecord first = null;
+        int count = 0;
+        while (reader.nextKeyValue()) {
+            GenericRecord record = reader.getCurrentKey().datum();
+            first = first == null ? record : first;
+            Assert.assertSame(first, record);
+            Assert.assertEquals(jsonBuilder.build(records.get(count % records.size())), new JsonBuilder(record.getSchema()).build(record));
+            count++;
+        }
+        Assert.assertEquals(2 * records.size(), count);
+        Assert.assertEquals(1.0f, reader.getProgress());
+        reader.close();
+    }
+}
@@ -0,0 +1,41 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.File;
+import java.io.IOException;
+import junit.framework.Assert;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.Test;
+
+public class ConversionStatsTest {
+
+    @Test
+    public void bucketTest() {
+        Assert.assertEquals(0, ConversionStats.bucket(0));
+        Assert.assertEquals(0, ConversionStats.bucket(64));
+        Assert.assertEquals(1, ConversionStats.bucket(65));
+        Assert.assertEquals(1, ConversionStats.bucket(128));
+        Assert.assertEquals(4, ConversionStats.bucket(1024));
+        Assert.assertEquals(25, ConversionStats.bucket(Integer.MAX_VALUE));
+        Assert.assertEquals("up to 2^10 bytes", ConversionStats.bucketName(ConversionStats.bucket(1000)));
+        Assert.assertEquals("over 2^30 bytes", ConversionStats.bucketName(25));
+    }
+
+    @Test
+    public void fieldBytesTest() throws IOException {
+        Schema schema = new Schema.Parser().parse(new File(getClass().getResource("/avroschema.avsc").getFile()));
+        GenericRecord user = JsonBuilderTest.user(schema);
+        ConversionStats stats = new ConversionStats(schema);
+        JsonOutput output = new JsonOutput();
+        new JsonBuilder(schema).build(user, output, stats.fieldBytes());
+        Assert.assertEquals(new JsonBuilder(schema).build(user), output.toString());
+        long total = 0;
+        int present = 0;
+        for (int i = 0; i < schema.getFields().size(); i++) {
+            total += stats.fieldBytes()[i];
+            present += user.get(i) == null ? 0 : 1;
+        }
+        // braces and the separators between fields are not accounted to any field
+        Assert.assertEquals(output.getLength(), total + 2 + 2 * (present - 1));
+    }
+}
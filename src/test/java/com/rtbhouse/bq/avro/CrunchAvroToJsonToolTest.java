@@ -0,0 +1,55 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.Assert;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData.Record;
+import org.apache.avro.util.Utf8;
+import org.apache.crunch.impl.mem.emit.InMemoryEmitter;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.junit.Test;
+
+public class CrunchAvroToJsonToolTest {
+
+    @Test
+    public void jsonRowFnTest() throws Exception {
+        Schema schema = new Schema.Parser().parse(new File(getClass().getResource("/avroschema.avsc").getFile()));
+        Configuration conf = new Configuration();
+        SchemaMetadata.store(conf, schema);
+        Counters counters = new Counters();
+        CrunchAvroToJsonTool.JsonRowFn fn = new CrunchAvroToJsonTool.JsonRowFn(500);
+        fn.setContext(new MapContextImpl<Object, Object, Object, Object>(conf,
+            TaskAttemptID.forName("attempt_1_0001_m_000000_0"), null, null, null, BlockParallelMapperTest.reporter(counters), null));
+        fn.initialize();
+
+        JsonBuilder jsonBuilder = new JsonBuilder(schema);
+        InMemoryEmitter<Text> emitter = new InMemoryEmitter<>();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Record user = (Record) JsonBuilderTest.user(schema);
+            user.put("id", i);
+            // every third row is over the limit
+            user.put("username", new Utf8(i % 3 == 0 ? new String(new char[1000]).replace('\0', 'x') : "user" + i));
+            fn.process(user, emitter);
+            if (i % 3 != 0) {
+                expected.add(jsonBuilder.build(user));
+            }
+        }
+        fn.cleanup(emitter);
+
+        // the emitter holds on to every row, so none of them may share a Text with a later one
+        List<String> rows = new ArrayList<>();
+        for (Text row : emitter.getOutput()) {
+            rows.add(row.toString());
+        }
+        Assert.assertEquals(expected, rows);
+        Assert.assertEquals(6, counters.findCounter(ConversionStats.Counters.RECORDS_OUT).getValue());
+        Assert.assertEquals(4, counters.findCounter(ConversionStats.Counters.SKIPPED_OVERSIZE).getValue());
+    }
+}
@@ -0,0 +1,292 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import junit.framework.Assert;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.junit.Test;
+
+public class JsonBuilderTest {
+
+    private static final String userJson = "{\"id\": 7, \"username\": \"jdoe\", \"passwordHash\": \"a\\/b\\\"c\", \"signupDate\": 1444000000000, "
+        + "\"emailAddresses\": [{\"address\": \"jdoe@example.com\", \"verified\": true, \"dateAdded\": 1444000000001}], "
+        + "\"twitterAccounts\": [], \"toDoItems\": [{\"status\": \"DONE\", \"title\": \"tab\\there\", \"snoozeDate\": 5}]}";
+
+    static final Schema mixedSchema = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"Mixed\", \"fields\": ["
+        + "{\"name\": \"ratio\", \"type\": \"double\"},"
+        + "{\"name\": \"weight\", \"type\": \"float\"},"
+        + "{\"name\": \"attributes\", \"type\": {\"type\": \"map\", \"values\": \"long\"}},"
+        + "{\"name\": \"value\", \"type\": [\"null\", \"long\", \"string\"]},"
+        + "{\"name\": \"next\", \"type\": [\"null\", \"Mixed\"]}]}");
+
+    static final Schema logicalSchema = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"Logical\", \"fields\": ["
+        + "{\"name\": \"day\", \"type\": {\"type\": \"int\", \"logicalType\": \"date\"}},"
+        + "{\"name\": \"millis\", \"type\": {\"type\": \"long\", \"logicalType\": \"timestamp-millis\"}},"
+        + "{\"name\": \"micros\", \"type\": [\"null\", {\"type\": \"long\", \"logicalType\": \"timestamp-micros\"}]},"
+        + "{\"name\": \"price\", \"type\": {\"type\": \"bytes\", \"logicalType\": \"decimal\", \"precision\": 20, \"scale\": 2}},"
+        + "{\"name\": \"amount\", \"type\": {\"type\": \"fixed\", \"name\": \"Amount\", \"size\": 12, "
+        + "\"logicalType\": \"decimal\", \"precision\": 28, \"scale\": 20}},"
+        + "{\"name\": \"plain\", \"type\": {\"type\": \"long\", \"logicalType\": \"date\"}}]}");
+
+    @Test
+    public void userTest() throws IOException {
+        Schema schema = new Schema.Parser().parse(
+            new File(getClass().getResource("/avroschema.avsc").getFile()));
+        GenericRecord user = user(schema);
+        Assert.assertEquals(userJson, new JsonBuilder(schema).build(user));
+        Assert.assertEquals(userJson, new JsonBuilder().build(user));
+    }
+
+    @Test
+    public void mixedTest() {
+        Map<Utf8, Long> attributes = new LinkedHashMap<>();
+        attributes.put(new Utf8("a"), 1L);
+        attributes.put(new Utf8("b\n"), 2L);
+        GenericRecord next = new GenericData.Record(mixedSchema);
+        next.put("ratio", Double.NaN);
+        next.put("weight", 0.5f);
+        next.put("attributes", new LinkedHashMap<>());
+        next.put("value", new Utf8("\u0001\u2028"));
+        GenericRecord mixed = new GenericData.Record(mixedSchema);
+        mixed.put("ratio", 1.25);
+        mixed.put("weight", Float.NaN);
+        mixed.put("attributes", attributes);
+        mixed.put("value", 42L);
+        mixed.put("next", next);
+
+        Assert.assertEquals("{\"ratio\": 1.25, \"weight\": null, "
+            + "\"attributes\": [{\"key\": \"a\", \"value\": 1}, {\"key\": \"b\\n\", \"value\": 2}], \"value\": {\"long\": 42}, "
+            + "\"next\": {\"ratio\": null, \"weight\": 0.5, \"attributes\": [], \"value\": {\"string\": \"\\u0001\\u2028\"}}}",
+            new JsonBuilder(mixedSchema).build(mixed));
+    }
+
+    @Test
+    public void mapEncodingTest() {
+        Map<Utf8, Long> attributes = new LinkedHashMap<>();
+        attributes.put(new Utf8("a\""), 1L);
+        attributes.put(new Utf8("b"), 2L);
+        GenericRecord next = new GenericData.Record(mixedSchema);
+        next.put("ratio", 0.5);
+        next.put("weight", 1f);
+        next.put("attributes", attributes);
+        GenericRecord mixed = new GenericData.Record(mixedSchema);
+        mixed.put("ratio", 1.25);
+        mixed.put("weight", 2f);
+        mixed.put("attributes", new LinkedHashMap<>());
+        mixed.put("next", next);
+
+        Assert.assertEquals("{\"ratio\": 1.25, \"weight\": 2.0, \"attributes\": \"{}\", "
+            + "\"next\": {\"ratio\": 0.5, \"weight\": 1.0, \"attributes\": \"{\\\"a\\\\\\\"\\\": 1, \\\"b\\\": 2}\"}}",
+            new JsonBuilder(mixedSchema, null, MapEncoding.JSON).build(mixed));
+    }
+
+    @Test
+    public void utf8Test() {
+        GenericRecord record = new GenericData.Record(mixedSchema);
+        record.put("ratio", 0.0);
+        record.put("weight", 0.0f);
+        record.put("attributes", new LinkedHashMap<>());
+        record.put("value", "za\u017c\u00f3\u0142\u0107 \ud83d\ude00");
+        JsonOutput output = new JsonOutput(8);
+        new JsonBuilder(mixedSchema).build(record, output);
+        String expected = "{\"ratio\": 0.0, \"weight\": 0.0, \"attributes\": [], \"value\": {\"string\": \"za\u017c\u00f3\u0142\u0107 \ud83d\ude00\"}}";
+        Assert.assertEquals(expected, output.toString());
+        Assert.assertTrue(Arrays.equals(expected.getBytes(StandardCharsets.UTF_8),
+            Arrays.copyOf(output.getBytes(), output.getLength())));
+    }
+
+    @Test
+    public void escapeTest() {
+        String value = "plain http://x.com/?a=\"b\"\\\t\r\n\b\f\u0000\u001f\u007f\u0080\u009f\u00a0"
+            + "\u2028\u20ac\u2100 \ud83d\ude00 \ud83d tail";
+        String expected = "\"plain http:\\/\\/x.com\\/?a=\\\"b\\\"\\\\\\t\\r\\n\\b\\f\\u0000\\u001F\\u007F"
+            + "\\u0080\\u009F\u00a0\\u2028\\u20AC\u2100 \ud83d\ude00 ? tail\"";
+        JsonOutput output = new JsonOutput(8);
+        output.writeString(value);
+        Assert.assertEquals(expected, output.toString());
+        output.reset();
+        output.writeString(new StringBuilder(value));
+        Assert.assertEquals(expected, output.toString());
+        output.reset();
+        output.writeString(new Utf8(value.replace("\ud83d ", "? ")));
+        Assert.assertEquals(expected, output.toString());
+    }
+
+    @Test
+    public void logicalTypesTest() {
+        GenericRecord record = logical(-1, -1L, 1456749000250123L, new BigDecimal("-12.05"), new BigDecimal("12345678.00000000000000000001"));
+        Assert.assertEquals("{\"day\": \"1969-12-31\", \"millis\": \"1969-12-31T23:59:59.999Z\", "
+            + "\"micros\": \"2016-02-29T12:30:00.250123Z\", \"price\": \"-12.05\", "
+            + "\"amount\": \"12345678.00000000000000000001\", \"plain\": -1}",
+            new JsonBuilder(logicalSchema).build(record));
+
+        JsonOutput output = new JsonOutput(8);
+        Random random = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            // years 0001 to 9999, the range of Big Query
+            long millis = (long) (random.nextDouble() * 315537897600000L) - 62135596800000L;
+            output.reset();
+            output.writeTimestamp(millis, 3);
+            Assert.assertEquals('"' + DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+                .format(Instant.ofEpochMilli(millis).atOffset(ZoneOffset.UTC)) + '"', output.toString());
+            output.reset();
+            output.writeDate((int) Math.floorDiv(millis, 86400000L));
+            Assert.assertEquals('"' + LocalDate.ofEpochDay(Math.floorDiv(millis, 86400000L)).toString() + '"', output.toString());
+
+            BigDecimal decimal = BigDecimal.valueOf(random.nextLong() >> random.nextInt(64), random.nextInt(24));
+            byte[] unscaled = decimal.unscaledValue().toByteArray();
+            output.reset();
+            output.writeDecimal(unscaled, 0, unscaled.length, decimal.scale());
+            Assert.assertEquals('"' + decimal.toPlainString() + '"', output.toString());
+        }
+    }
+
+    @Test
+    public void numbersTest() {
+        JsonOutput output = new JsonOutput(8);
+        long[] longs = {0, 7, -7, 10, 99, 100, Long.MAX_VALUE, Long.MIN_VALUE, Integer.MIN_VALUE, 1234567890123L};
+        for (long value : longs) {
+            output.reset();
+            output.writeLong(value);
+            Assert.assertEquals(Long.toString(value), output.toString());
+        }
+        Object[][] doubles = {{1.25, "1.25"}, {-0.0, "-0.0"}, {100.0, "100.0"}, {1e7, "1.0E7"}, {9999999.5, "9999999.5"},
+            {0.001, "0.001"}, {9.9e-4, "9.9E-4"}, {2e23, "2.0E23"}, {Double.MAX_VALUE, "1.7976931348623157E308"},
+            {Double.POSITIVE_INFINITY, "null"}, {Double.NEGATIVE_INFINITY, "null"}, {Double.NaN, "null"}};
+        for (Object[] value : doubles) {
+            output.reset();
+            output.writeDouble((Double) value[0]);
+            Assert.assertEquals(value[1], output.toString());
+        }
+        Object[][] floats = {{0.1f, "0.1"}, {-1.5e10f, "-1.5E10"}, {3.4028235e38f, "3.4028235E38"}, {Float.NEGATIVE_INFINITY, "null"}};
+        for (Object[] value : floats) {
+            output.reset();
+            output.writeFloat((Float) value[0]);
+            Assert.assertEquals(value[1], output.toString());
+        }
+
+        // the shortest decimals parse back to the same value and are never longer than Java's
+        Random random = new Random(7);
+        for (int i = 0; i < 100000; i++) {
+            double doubleValue = Double.longBitsToDouble(random.nextLong());
+            float floatValue = Float.intBitsToFloat(random.nextInt());
+            if (Double.isNaN(doubleValue) || Float.isNaN(floatValue)) {
+                continue;
+            }
+            output.reset();
+            output.writeDouble(doubleValue);
+            Assert.assertEquals(doubleValue, Double.parseDouble(output.toString()));
+            Assert.assertTrue(output.getLength() <= Double.toString(doubleValue).length());
+            output.reset();
+            output.writeFloat(floatValue);
+            Assert.assertEquals(floatValue, Float.parseFloat(output.toString()));
+            Assert.assertTrue(output.getLength() <= Float.toString(floatValue).length());
+        }
+    }
+
+    static GenericRecord logical(int day, long millis, Long micros, BigDecimal price, BigDecimal amount) {
+        Schema amountSchema = logicalSchema.getField("amount").schema();
+        byte[] unscaled = amount.unscaledValue().toByteArray();
+        byte[] fixed = new byte[amountSchema.getFixedSize()];
+        Arrays.fill(fixed, 0, fixed.length - unscaled.length, (byte) (amount.signum() < 0 ? 0xFF : 0));
+        System.arraycopy(unscaled, 0, fixed, fixed.length - unscaled.length, unscaled.length);
+        GenericRecord record = new GenericData.Record(logicalSchema);
+        record.put("day", day);
+        record.put("millis", millis);
+        record.put("micros", micros);
+        record.put("price", ByteBuffer.wrap(price.unscaledValue().toByteArray()));
+        record.put("amount", new GenericData.Fixed(amountSchema, fixed));
+        record.put("plain", (long) day);
+        return record;
+    }
+
+    @Test
+    public void bytesTest() {
+        Schema schema = SchemaBuilder.record("Blob").fields()
+            .requiredBytes("payload")
+            .name("digest").type().fixed("Digest").size(4).noDefault()
+            .endRecord();
+        JsonBuilder jsonBuilder = new JsonBuilder(schema);
+        for (int length = 0; length < 8; length++) {
+            byte[] payload = new byte[length];
+            for (int i = 0; i < length; i++) {
+                payload[i] = (byte) (0xFB + 7 * i);
+            }
+            byte[] digest = {(byte) 0xFF, 0, 1, (byte) 0x80};
+            GenericRecord record = new GenericData.Record(schema);
+            record.put("payload", ByteBuffer.wrap(payload));
+            record.put("digest", new GenericData.Fixed(schema.getField("digest").schema(), digest));
+            Assert.assertEquals("{\"payload\": \"" + Base64.getEncoder().encodeToString(payload) + "\", "
+                + "\"digest\": \"/wABgA==\"}", jsonBuilder.build(record));
+        }
+    }
+
+    @Test
+    public void limitTest() throws IOException {
+        Schema schema = new Schema.Parser().parse(new File(getClass().getResource("/avroschema.avsc").getFile()));
+        GenericRecord user = user(schema);
+        int length = new JsonBuilder(schema).build(user).getBytes(StandardCharsets.UTF_8).length;
+        JsonOutput output = new JsonOutput(8);
+        output.setLimit(length);
+        new JsonBuilder(schema).build(user, output);
+        Assert.assertFalse(output.isOverflow());
+        Assert.assertEquals(length, output.getLength());
+        output.reset();
+        output.setLimit(length - 1);
+        new JsonBuilder(schema).build(user, output);
+        Assert.assertTrue(output.isOverflow());
+        Assert.assertTrue(output.getLength() < length);
+        output.reset();
+        Assert.assertFalse(output.isOverflow());
+
+        // the date, timestamp, decimal and double writers learn their length as they write
+        GenericRecord logical = logical(17000, 1468800000000L, 1468800000000001L, new BigDecimal("-1.25"), BigDecimal.TEN);
+        String json = new JsonBuilder(logicalSchema).build(logical) + Double.MAX_VALUE;
+        for (int limit = json.length() - 80; limit <= json.length(); limit++) {
+            output.reset();
+            output.setLimit(limit);
+            new JsonBuilder(logicalSchema).build(logical, output);
+            output.writeDouble(Double.MAX_VALUE);
+            Assert.assertEquals(limit < json.length(), output.isOverflow());
+            Assert.assertTrue(output.getLength() <= limit);
+        }
+    }
+
+    static GenericRecord user(Schema schema) {
+        Schema emailSchema = schema.getField("emailAddresses").schema().getElementType();
+        Schema toDoSchema = schema.getField("toDoItems").schema().getElementType();
+        GenericRecord email = new GenericData.Record(emailSchema);
+        email.put("address", new Utf8("jdoe@example.com"));
+        email.put("verified", true);
+        email.put("dateAdded", 1444000000001L);
+        GenericRecord toDo = new GenericData.Record(toDoSchema);
+        toDo.put("status", new GenericData.EnumSymbol(toDoSchema.getField("status").schema(), "DONE"));
+        toDo.put("title", "tab\there");
+        toDo.put("snoozeDate", 5L);
+        GenericRecord user = new GenericData.Record(schema);
+        user.put("id", 7);
+        user.put("username", new Utf8("jdoe"));
+        user.put("passwordHash", "a/b\"c");
+        user.put("signupDate", 1444000000000L);
+        user.put("emailAddresses", new GenericData.Array<>(schema.getField("emailAddresses").schema(), Arrays.asList(email)));
+        user.put("twitterAccounts", new GenericData.Array<>(schema.getField("twitterAccounts").schema(), Arrays.<GenericRecord>asList()));
+        user.put("toDoItems", new GenericData.Array<>(schema.getField("toDoItems").schema(), Arrays.asList(toDo)));
+        return user;
+    }
+}
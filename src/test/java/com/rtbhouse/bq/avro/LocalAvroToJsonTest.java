@@ -0,0 +1,109 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import junit.framework.Assert;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class LocalAvroToJsonTest {
+
+    private static final Pattern ENTRY = Pattern.compile("\\{\"file\": \"(.+)\", \"rows\": (\\d+), \"bytes\": (\\d+)\\}");
+
+    @Test
+    public void threadsTest() throws Exception {
+        File schemaFile = new File(getClass().getResource("/avroschema.avsc").toURI());
+        Schema schema = new Schema.Parser().parse(schemaFile);
+        File dir = Files.createTempDir();
+        File input = new File(dir, "users.avro");
+        // the record path is what the local engine has to match
+        JsonBuilder jsonBuilder = new JsonBuilder(schema);
+        List<String> expected = new ArrayList<>();
+        DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schema));
+        writer.setSyncInterval(4096);
+        writer.create(schema, input);
+        for (int i = 0; i < 5000; i++) {
+            GenericRecord user = JsonBuilderTest.user(schema);
+            user.put("id", i);
+            user.put("username", new Utf8("user" + i));
+            writer.append(user);
+            expected.add(jsonBuilder.build(user));
+        }
+        writer.close();
+
+        File output = new File(dir, "output");
+        try {
+            Assert.assertEquals(0, new LocalAvroToJson().run(new String[] {"-s", schemaFile.getPath(), "-f", input.getPath(),
+                "-o", output.getPath(), "-p", "4", "-c", "none"}));
+        } finally {
+            new File(AvroToJson.SCHEMA_BQSC_FILE).delete();
+        }
+
+        // every thread gets a split below the default 512 MB, and the parts keep the input order
+        List<String> manifest = Files.readLines(new File(output, NdjsonOutputFormat.MANIFEST), StandardCharsets.UTF_8);
+        Assert.assertEquals(4, manifest.size());
+        List<String> rows = new ArrayList<>();
+        for (String entry : manifest) {
+            Matcher matcher = ENTRY.matcher(entry);
+            Assert.assertTrue(matcher.matches());
+            List<String> partRows = Files.readLines(new File(output, matcher.group(1)), StandardCharsets.UTF_8);
+            Assert.assertTrue(partRows.size() > 0);
+            Assert.assertEquals(Long.parseLong(matcher.group(2)), partRows.size());
+            rows.addAll(partRows);
+        }
+        Assert.assertEquals(expected, rows);
+    }
+
+    @Test
+    public void emptySplitTest() throws Exception {
+        File schemaFile = new File(getClass().getResource("/avroschema.avsc").toURI());
+        Schema schema = new Schema.Parser().parse(schemaFile);
+        File dir = Files.createTempDir();
+        File input = new File(dir, "users.avro");
+        JsonBuilder jsonBuilder = new JsonBuilder(schema);
+        List<String> expected = new ArrayList<>();
+        // blocks of about 256 KB cut into 64 KB splits, most of them without a block start
+        DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schema));
+        writer.setSyncInterval(256 * 1024);
+        writer.create(schema, input);
+        for (int i = 0; i < 20000; i++) {
+            GenericRecord user = JsonBuilderTest.user(schema);
+            user.put("id", i);
+            writer.append(user);
+            expected.add(jsonBuilder.build(user));
+        }
+        writer.close();
+
+        File output = new File(dir, "output");
+        try {
+            Assert.assertEquals(0, new LocalAvroToJson().run(new String[] {"-s", schemaFile.getPath(), "-f", input.getPath(),
+                "-o", output.getPath(), "-p", "16", "-c", "none"}));
+        } finally {
+            new File(AvroToJson.SCHEMA_BQSC_FILE).delete();
+        }
+
+        List<String> manifest = Files.readLines(new File(output, NdjsonOutputFormat.MANIFEST), StandardCharsets.UTF_8);
+        Assert.assertTrue(manifest.size() < input.length() / LocalAvroToJson.MIN_SPLIT_SIZE);
+        // only the manifest and the parts it lists are written
+        Assert.assertEquals(manifest.size() + 1, output.list().length);
+        List<String> rows = new ArrayList<>();
+        for (String entry : manifest) {
+            Matcher matcher = ENTRY.matcher(entry);
+            Assert.assertTrue(matcher.matches());
+            List<String> partRows = Files.readLines(new File(output, matcher.group(1)), StandardCharsets.UTF_8);
+            Assert.assertTrue(partRows.size() > 0);
+            rows.addAll(partRows);
+        }
+        Assert.assertEquals(expected, rows);
+    }
+}
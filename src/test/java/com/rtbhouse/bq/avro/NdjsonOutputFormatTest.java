@@ -0,0 +1,101 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import junit.framework.Assert;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class NdjsonOutputFormatTest {
+
+    private static final Pattern ENTRY = Pattern.compile("\\{\"file\": \"(.+)\", \"rows\": (\\d+), \"bytes\": (\\d+)\\}");
+
+    @Test
+    public void rollingTest() throws IOException, InterruptedException {
+        File output = new File(Files.createTempDir(), "output");
+        Configuration conf = new Configuration();
+        conf.set("mapreduce.output.fileoutputformat.outputdir", output.toURI().toString());
+        conf.setLong(NdjsonOutputFormat.PART_MAX_COMPRESSED_SIZE, 256 * 1024);
+        TaskAttemptContext context = new TaskAttemptContextImpl(conf, TaskAttemptID.forName("attempt_1_0001_m_000000_0"));
+        NdjsonOutputFormat format = new NdjsonOutputFormat();
+        OutputCommitter committer = format.getOutputCommitter(context);
+        committer.setupJob(new JobContextImpl(conf, context.getJobID()));
+        committer.setupTask(context);
+
+        // random digits hardly compress, so the compressed limit is hit long before the json one
+        Random random = new Random(1);
+        RecordWriter<Text, NullWritable> writer = format.getRecordWriter(context);
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder row = new StringBuilder("{\"digits\": \"");
+            for (int j = 0; j < 1000; j++) {
+                row.append((char) ('0' + random.nextInt(10)));
+            }
+            writer.write(new Text(row.append("\"}").toString()), NullWritable.get());
+        }
+        writer.close(context);
+        committer.commitTask(context);
+        committer.commitJob(new JobContextImpl(conf, context.getJobID()));
+
+        List<String> manifest = Files.readLines(new File(output, NdjsonOutputFormat.MANIFEST), StandardCharsets.UTF_8);
+        Assert.assertTrue(manifest.size() > 1);
+        long rows = 0;
+        for (String entry : manifest) {
+            Matcher matcher = ENTRY.matcher(entry);
+            Assert.assertTrue(matcher.matches());
+            File part = new File(output, matcher.group(1));
+            Assert.assertEquals(part.length(), Long.parseLong(matcher.group(3)));
+            Assert.assertTrue(part.length() < 512 * 1024);
+            rows += Long.parseLong(matcher.group(2));
+        }
+        Assert.assertEquals(2000, rows);
+        Assert.assertTrue(new File(output, "_SUCCESS").exists());
+        Assert.assertEquals(0, output.list((dir, name) -> name.startsWith(NdjsonOutputFormat.MANIFEST + "-")).length);
+    }
+
+    @Test
+    public void partitionTest() throws IOException {
+        File output = new File(Files.createTempDir(), "output");
+        Configuration conf = new Configuration();
+        conf.set("mapreduce.output.fileoutputformat.outputdir", output.toURI().toString());
+        conf.set(NdjsonOutputFormat.COMPRESSION, "none");
+        conf.setInt(NdjsonOutputFormat.PARTITION_MAX_OPEN, 2);
+        TaskAttemptContext context = new TaskAttemptContextImpl(conf, TaskAttemptID.forName("attempt_1_0001_m_000000_0"));
+        NdjsonOutputFormat format = new NdjsonOutputFormat();
+        OutputCommitter committer = format.getOutputCommitter(context);
+        committer.setupJob(new JobContextImpl(conf, context.getJobID()));
+        committer.setupTask(context);
+
+        // three partitions in turn through two writers, so every partition is reopened in a new part
+        NdjsonOutputFormat.PartitionWriters writers = format.partitionWriters(context);
+        for (int i = 0; i < 6; i++) {
+            writers.write("dt=" + (i % 3), new Text("{\"i\": " + i + "}"));
+        }
+        writers.close();
+        committer.commitTask(context);
+        committer.commitJob(new JobContextImpl(conf, context.getJobID()));
+
+        List<String> manifest = Files.readLines(new File(output, NdjsonOutputFormat.MANIFEST), StandardCharsets.UTF_8);
+        Assert.assertEquals(6, manifest.size());
+        Assert.assertEquals(NdjsonOutputFormat.manifestEntry("dt=0/part-m-00000", 1, 9), manifest.get(0) + "\n");
+        Assert.assertEquals(NdjsonOutputFormat.manifestEntry("dt=0/part-m-00000-00001", 1, 9), manifest.get(3) + "\n");
+        Assert.assertEquals("{\"i\": 0}", Files.readFirstLine(new File(output, "dt=0/part-m-00000"), StandardCharsets.UTF_8));
+        Assert.assertEquals("{\"i\": 3}", Files.readFirstLine(new File(output, "dt=0/part-m-00000-00001"), StandardCharsets.UTF_8));
+        Assert.assertEquals("{\"i\": 5}", Files.readFirstLine(new File(output, "dt=2/part-m-00000-00001"), StandardCharsets.UTF_8));
+        Assert.assertEquals(0, output.list((dir, name) -> name.startsWith(NdjsonOutputFormat.MANIFEST + "-")).length);
+    }
+}
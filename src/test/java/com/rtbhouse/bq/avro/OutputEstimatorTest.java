@@ -0,0 +1,54 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import junit.framework.Assert;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+
+public class OutputEstimatorTest {
+
+    @Test
+    public void sampleTest() throws IOException {
+        List<GenericRecord> records = AvroJsonTranscoderTest.mixed(2000);
+        File file = File.createTempFile("mixed", ".avro");
+        file.deleteOnExit();
+        DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(JsonBuilderTest.mixedSchema));
+        writer.setSyncInterval(1024);
+        writer.create(JsonBuilderTest.mixedSchema, file);
+        for (GenericRecord record : records) {
+            writer.append(record);
+        }
+        writer.close();
+        long jsonBytes = 0;
+        JsonBuilder jsonBuilder = new JsonBuilder(JsonBuilderTest.mixedSchema);
+        for (GenericRecord record : records) {
+            jsonBytes += jsonBuilder.build(record).getBytes("UTF-8").length + 1;
+        }
+
+        // a fraction of 1 reads every block, and so converts every record
+        OutputEstimator all = estimate(file, 1.0);
+        Assert.assertEquals(records.size(), all.getRows());
+        Assert.assertEquals(jsonBytes, all.getJsonBytes());
+        Assert.assertTrue(all.getSampledBytes() < file.length());
+
+        OutputEstimator quarter = estimate(file, 0.25);
+        Assert.assertTrue(quarter.getSampledBytes() > all.getSampledBytes() / 5);
+        Assert.assertTrue(quarter.getSampledBytes() < all.getSampledBytes() / 3);
+        Assert.assertTrue(quarter.getRows() > 0 && quarter.getRows() < records.size() / 3);
+        Assert.assertEquals(quarter.getJsonBytes(), estimate(file, 0.25).getJsonBytes());
+    }
+
+    private static OutputEstimator estimate(File file, double fraction) throws IOException {
+        OutputEstimator estimator = new OutputEstimator(new Configuration(), JsonBuilderTest.mixedSchema, null, MapEncoding.RECORDS, null,
+            AvroToJson.MAXSIZE, NdjsonOutputFormat.Compression.parse("gzip"), fraction);
+        estimator.sample(new Path(file.toURI()), 0, file.length());
+        estimator.print(NdjsonOutputFormat.DEFAULT_PART_MAX_COMPRESSED_SIZE);
+        return estimator;
+    }
+}
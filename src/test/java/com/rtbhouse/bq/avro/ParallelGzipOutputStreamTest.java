@@ -0,0 +1,115 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import junit.framework.Assert;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class ParallelGzipOutputStreamTest {
+
+    @Test
+    public void roundTripTest() throws IOException {
+        byte[] data = new byte[100000];
+        Random random = new Random(1);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(4));
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, 1, 3, 4096)) {
+            int offset = 0;
+            while (offset < data.length) {
+                if (random.nextBoolean()) {
+                    out.write(data[offset++]);
+                } else {
+                    int count = Math.min(random.nextInt(10000), data.length - offset);
+                    out.write(data, offset, count);
+                    offset += count;
+                }
+            }
+        }
+        byte[] decompressed = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())));
+        Assert.assertTrue(Arrays.equals(data, decompressed));
+    }
+
+    @Test
+    public void emptyTest() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream(compressed, 6, 2).close();
+        Assert.assertEquals(0, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))).length);
+    }
+
+    @Test
+    public void sharedPoolTest() throws IOException {
+        ExecutorService pool = ParallelGzipOutputStream.newPool(2);
+        byte[] data = new byte[50000];
+        Random random = new Random(2);
+        random.nextBytes(data);
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        // two streams written in turn, each with a single chunk in flight on the shared threads
+        try (ParallelGzipOutputStream firstOut = new ParallelGzipOutputStream(first, 6, pool, 1, 4096);
+            ParallelGzipOutputStream secondOut = new ParallelGzipOutputStream(second, 6, pool, 1, 4096)) {
+            for (int offset = 0; offset < data.length; offset += 1000) {
+                firstOut.write(data, offset, 1000);
+                secondOut.write(data, data.length - offset - 1000, 1000);
+            }
+        }
+        Assert.assertFalse(pool.isShutdown());
+        pool.shutdown();
+        Assert.assertTrue(Arrays.equals(data, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(first.toByteArray())))));
+        byte[] reversed = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(second.toByteArray())));
+        for (int offset = 0; offset < data.length; offset += 1000) {
+            Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, data.length - offset - 1000, data.length - offset),
+                Arrays.copyOfRange(reversed, offset, offset + 1000)));
+        }
+    }
+
+    @Test
+    public void partitionsInFlightTest() throws Exception {
+        // the first two chunks only start compressing together, the last ones of the closing streams go alone
+        CyclicBarrier together = new CyclicBarrier(2);
+        AtomicInteger started = new AtomicInteger();
+        CountDownLatch crossed = new CountDownLatch(2);
+        ExecutorService pool = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()) {
+
+            @Override
+            protected void beforeExecute(Thread thread, Runnable task) {
+                if (started.getAndIncrement() < 2) {
+                    try {
+                        together.await(10, TimeUnit.SECONDS);
+                        crossed.countDown();
+                    } catch (Exception e) {
+                        // compressed alone, the latch times out
+                    }
+                }
+            }
+        };
+        NdjsonOutputFormat.Compression compression = NdjsonOutputFormat.Compression.parse("pgzip");
+        byte[] chunk = new byte[ParallelGzipOutputStream.DEFAULT_CHUNK_SIZE + 1];
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        // one thread writes both partitions, a full chunk each, as the partition writers of a task do
+        try (OutputStream firstOut = compression.wrap(first, pool, NdjsonOutputFormat.PARTITION_MAX_PENDING);
+            OutputStream secondOut = compression.wrap(second, pool, NdjsonOutputFormat.PARTITION_MAX_PENDING)) {
+            firstOut.write(chunk);
+            secondOut.write(chunk);
+            Assert.assertTrue(crossed.await(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+        Assert.assertEquals(chunk.length, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(first.toByteArray()))).length);
+    }
+}
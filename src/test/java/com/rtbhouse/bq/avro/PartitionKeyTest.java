@@ -0,0 +1,44 @@
+package com.rtbhouse.bq.avro;
+
+import junit.framework.Assert;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.junit.Test;
+
+public class PartitionKeyTest {
+
+    private static final Schema schema = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"Event\", \"fields\": ["
+        + "{\"name\": \"day\", \"type\": {\"type\": \"int\", \"logicalType\": \"date\"}},"
+        + "{\"name\": \"time\", \"type\": [\"null\", {\"type\": \"long\", \"logicalType\": \"timestamp-micros\"}]},"
+        + "{\"name\": \"country\", \"type\": \"string\"},"
+        + "{\"name\": \"weight\", \"type\": \"double\"}]}");
+
+    @Test
+    public void partitionTest() {
+        GenericRecord record = new GenericData.Record(schema);
+        record.put("day", 20744);
+        record.put("time", 1792281600000000L);
+        Utf8 country = new Utf8("PL");
+        record.put("country", country);
+        Assert.assertEquals("day=2026-10-18", new PartitionKey(schema, "day").of(record));
+        PartitionKey time = new PartitionKey(schema, "time");
+        Assert.assertEquals("time=2026-10-18", time.of(record));
+        record.put("time", -1L);
+        Assert.assertEquals("time=1969-12-31", time.of(record));
+        record.put("time", null);
+        Assert.assertEquals("time=" + PartitionKey.NULL_PARTITION, time.of(record));
+
+        // the reader decodes strings in place, which must not leave the last partition behind
+        PartitionKey key = new PartitionKey(schema, "country");
+        Assert.assertEquals("country=PL", key.of(record));
+        country.set("a/b c");
+        Assert.assertEquals("country=a%2Fb+c", key.of(record));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void typeTest() {
+        new PartitionKey(schema, "weight");
+    }
+}
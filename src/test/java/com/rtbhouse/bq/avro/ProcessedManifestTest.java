@@ -0,0 +1,83 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.Assert;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.file.SeekableFileInput;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class ProcessedManifestTest {
+
+    private static final Schema SCHEMA = Schema.create(Schema.Type.LONG);
+
+    @Test
+    public void selectTest() throws IOException {
+        Configuration conf = new Configuration();
+        File directory = Files.createTempDir();
+        File input = new File(directory, "input.avro");
+        Path output = new Path(new File(directory, "output").toURI());
+        write(input, 0, 100, false);
+
+        ProcessedManifest manifest = ProcessedManifest.read(conf, output);
+        List<ProcessedManifest.Input> inputs = select(manifest, conf, directory);
+        Assert.assertEquals(1, inputs.size());
+        Assert.assertEquals(0, inputs.get(0).getStart());
+        manifest.commit();
+        Assert.assertTrue(select(ProcessedManifest.read(conf, output), conf, directory).isEmpty());
+
+        // only the appended blocks are converted again
+        long length = input.length();
+        write(input, 100, 150, true);
+        manifest = ProcessedManifest.read(conf, output);
+        inputs = select(manifest, conf, directory);
+        Assert.assertEquals(1, inputs.size());
+        Assert.assertTrue(inputs.get(0).getStart() > 0 && inputs.get(0).getStart() < length);
+        Assert.assertEquals(50, count(input, inputs.get(0).getStart()));
+        manifest.commit();
+
+        // a rewritten file is converted as a whole
+        write(input, 0, 200, false);
+        inputs = select(ProcessedManifest.read(conf, output), conf, directory);
+        Assert.assertEquals(1, inputs.size());
+        Assert.assertEquals(0, inputs.get(0).getStart());
+    }
+
+    private static List<ProcessedManifest.Input> select(ProcessedManifest manifest, Configuration conf, File directory) throws IOException {
+        return manifest.select(InputFiles.list(conf, Arrays.asList(new Path(directory.toURI()))));
+    }
+
+    private static void write(File file, long from, long to, boolean append) throws IOException {
+        DataFileWriter<Long> writer = new DataFileWriter<>(new GenericDatumWriter<Long>(SCHEMA));
+        writer.setSyncInterval(64);
+        if (append) {
+            writer.appendTo(file);
+        } else {
+            file.delete();
+            writer.create(SCHEMA, file);
+        }
+        for (long i = from; i < to; i++) {
+            writer.append(i);
+        }
+        writer.close();
+    }
+
+    private static long count(File file, long start) throws IOException {
+        long count = 0;
+        try (AvroBlockReader reader = new AvroBlockReader(new SeekableFileInput(file), start, file.length())) {
+            for (ByteBuffer block = reader.nextBlockInSplit(); block != null; block = reader.nextBlockInSplit()) {
+                count += reader.getBlockCount();
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,54 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import junit.framework.Assert;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.junit.Test;
+
+public class RowFilterTest {
+
+    @Test
+    public void filterTest() throws IOException {
+        Schema schema = new Schema.Parser().parse(new File(getClass().getResource("/avroschema.avsc").getFile()));
+        GenericRecord user = JsonBuilderTest.user(schema);
+        user.put("username", new Utf8("jdoe"));
+        user.put("signupDate", 1000L);
+
+        Assert.assertTrue(RowFilter.parse("username = 'jdoe'", schema).accept(user));
+        Assert.assertTrue(RowFilter.parse("username != jdo AND signupDate >= 1000", schema).accept(user));
+        Assert.assertFalse(RowFilter.parse("username = jdoe and signupDate > 1000", schema).accept(user));
+        Assert.assertTrue(RowFilter.parse("signupDate < 1001 and signupDate <= 1000 and signupDate <> 5", schema).accept(user));
+        Assert.assertTrue(RowFilter.parse("username > 'jd' and username < \"je\"", schema).accept(user));
+        Assert.assertTrue(RowFilter.parse("username is not null", schema).accept(user));
+        Assert.assertFalse(RowFilter.parse("username is null", schema).accept(user));
+        user.put("username", null);
+        Assert.assertFalse(RowFilter.parse("username != 'x'", schema).accept(user));
+        Assert.assertEquals(new LinkedHashSet<>(Arrays.asList("username", "signupDate")),
+            RowFilter.parse("username is null and signupDate = 1", schema).getColumns());
+    }
+
+    @Test
+    public void quotedAndTest() throws IOException {
+        Schema schema = new Schema.Parser().parse(new File(getClass().getResource("/avroschema.avsc").getFile()));
+        GenericRecord user = JsonBuilderTest.user(schema);
+        user.put("username", new Utf8("salt and pepper"));
+        user.put("signupDate", 1000L);
+
+        Assert.assertTrue(RowFilter.parse("username = 'salt and pepper'", schema).accept(user));
+        Assert.assertTrue(RowFilter.parse("signupDate = 1000 and username = \"salt and pepper\" and username != 'x and y'", schema).accept(user));
+        Assert.assertFalse(RowFilter.parse("username = 'salt and' and signupDate = 1000", schema).accept(user));
+        Assert.assertEquals(new LinkedHashSet<>(Arrays.asList("signupDate", "username")),
+            RowFilter.parse("signupDate = 1 AND username = 'a and b'", schema).getColumns());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownColumnTest() throws IOException {
+        Schema schema = new Schema.Parser().parse(new File(getClass().getResource("/avroschema.avsc").getFile()));
+        RowFilter.parse("country = 'PL'", schema);
+    }
+}
@@ -2,8 +2,12 @@ package com.rtbhouse.bq.avro;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import junit.framework.Assert;
 import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
 import org.junit.Test;
 
 public class SchemaConverterTest {
@@ -27,4 +31,63 @@ public class SchemaConverterTest {
         Assert.assertNotNull(convert);
         Assert.assertEquals(typeBqsc, convert);
     }
+
+    @Test
+    public void bytesTest() {
+        Schema avro = SchemaBuilder.record("Blob").fields()
+            .requiredBytes("payload")
+            .name("digest").type().optional().fixed("Digest").size(16)
+            .endRecord();
+        Assert.assertEquals("[{\"name\" : \"payload\", \"type\" : \"BYTES\"},{\"name\" : \"digest\", \"type\" : \"BYTES\"}]",
+            new SchemaConverter().convert(avro));
+    }
+
+    @Test
+    public void logicalTypesTest() {
+        Assert.assertEquals("[{\"name\" : \"day\", \"type\" : \"DATE\"},{\"name\" : \"millis\", \"type\" : \"TIMESTAMP\"},"
+            + "{\"name\" : \"micros\", \"type\" : \"TIMESTAMP\"},{\"name\" : \"price\", \"type\" : \"NUMERIC\"},"
+            + "{\"name\" : \"amount\", \"type\" : \"BIGNUMERIC\"},{\"name\" : \"plain\", \"type\" : \"INTEGER\"}]",
+            new SchemaConverter().convert(JsonBuilderTest.logicalSchema));
+    }
+
+    @Test
+    public void unionAndMapTest() {
+        String value = "{\"name\" : \"value\", \"type\" : \"RECORD\", \"mode\" : \"NULLABLE\", \"fields\" : "
+            + "[{\"name\" : \"long\", \"type\" : \"INTEGER\"},{\"name\" : \"string\", \"type\" : \"STRING\"}]}";
+        Schema schema = Projection.project(JsonBuilderTest.mixedSchema, Arrays.asList("weight", "attributes", "value"));
+        Assert.assertEquals("[{\"name\" : \"weight\", \"type\" : \"FLOAT\"},{\"name\" : \"attributes\", \"type\" : \"RECORD\", "
+            + "\"mode\" : \"REPEATED\", \"fields\" : [{\"name\" : \"key\", \"type\" : \"STRING\"},{\"name\" : \"value\", \"type\" : \"INTEGER\"}]},"
+            + value + "]", new SchemaConverter().convert(schema));
+        Assert.assertEquals("[{\"name\" : \"weight\", \"type\" : \"FLOAT\"},{\"name\" : \"attributes\", \"type\" : \"STRING\"},"
+            + value + "]", new SchemaConverter(MapEncoding.JSON).convert(schema));
+    }
+
+    @Test
+    public void branchNameTest() {
+        Schema schema = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"Log\", \"fields\": [{\"name\": \"event\", \"type\": [\"null\", "
+            + "{\"type\": \"record\", \"name\": \"Event\", \"namespace\": \"a\", \"fields\": [{\"name\": \"x\", \"type\": \"int\"}]}, "
+            + "{\"type\": \"record\", \"name\": \"Event\", \"namespace\": \"b.c\", \"fields\": [{\"name\": \"y\", \"type\": \"string\"}]}, "
+            + "\"long\"]}]}");
+        Assert.assertEquals("[{\"name\" : \"event\", \"type\" : \"RECORD\", \"mode\" : \"NULLABLE\", \"fields\" : ["
+            + "{\"name\" : \"a_Event\", \"type\" : \"RECORD\", \"mode\" : \"NULLABLE\", \"fields\" : [{\"name\" : \"x\", \"type\" : \"INTEGER\"}]},"
+            + "{\"name\" : \"b_c_Event\", \"type\" : \"RECORD\", \"mode\" : \"NULLABLE\", \"fields\" : [{\"name\" : \"y\", \"type\" : \"STRING\"}]},"
+            + "{\"name\" : \"long\", \"type\" : \"INTEGER\"}]}]", new SchemaConverter().convert(schema));
+
+        GenericRecord event = new GenericData.Record(schema.getField("event").schema().getTypes().get(2));
+        event.put("y", "z");
+        GenericRecord log = new GenericData.Record(schema);
+        log.put("event", event);
+        Assert.assertEquals("{\"event\": {\"b_c_Event\": {\"y\": \"z\"}}}", new JsonBuilder(schema).build(log));
+        GenericRecord branches = (GenericRecord) new BigQueryAvro(schema, null).convert(log).get("event");
+        Assert.assertNull(branches.get("a_Event"));
+        Assert.assertSame(event, branches.get("b_c_Event"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void branchCollisionTest() {
+        new SchemaConverter().convert(new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"Log\", \"fields\": [{\"name\": \"event\", \"type\": ["
+            + "{\"type\": \"record\", \"name\": \"c_Event\", \"namespace\": \"a_b\", \"fields\": []}, "
+            + "{\"type\": \"record\", \"name\": \"Event\", \"namespace\": \"a_b_c\", \"fields\": []}, "
+            + "{\"type\": \"record\", \"name\": \"Event\", \"namespace\": \"a.b_c\", \"fields\": []}]}]}"));
+    }
 }
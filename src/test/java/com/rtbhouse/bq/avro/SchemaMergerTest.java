@@ -0,0 +1,109 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.Assert;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.junit.Test;
+
+public class SchemaMergerTest {
+
+    private static final Schema V1 = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"User\", \"fields\": ["
+        + "{\"name\": \"id\", \"type\": \"int\"}, {\"name\": \"name\", \"type\": \"string\"}, "
+        + "{\"name\": \"status\", \"type\": {\"type\": \"enum\", \"name\": \"Status\", \"symbols\": [\"NEW\"]}}]}");
+
+    private static final Schema V2 = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"User\", \"fields\": ["
+        + "{\"name\": \"id\", \"type\": \"long\"}, {\"name\": \"email\", \"type\": [\"string\", \"null\"]}, "
+        + "{\"name\": \"status\", \"type\": {\"type\": \"enum\", \"name\": \"Status\", \"symbols\": [\"NEW\", \"ACTIVE\"]}}, "
+        + "{\"name\": \"score\", \"type\": \"double\", \"default\": 0}]}");
+
+    @Test
+    public void mergeTest() {
+        Schema merged = SchemaMerger.merge(Arrays.asList(null, V1, V2));
+        Assert.assertEquals(Arrays.asList("id", "name", "status", "email", "score"), names(merged));
+        Assert.assertEquals(Schema.Type.LONG, merged.getField("id").schema().getType());
+        Assert.assertEquals("[\"null\",\"string\"]", merged.getField("name").schema().toString());
+        Assert.assertEquals("[\"null\",\"string\"]", merged.getField("email").schema().toString());
+        Assert.assertEquals(Arrays.asList("NEW", "ACTIVE"), merged.getField("status").schema().getEnumSymbols());
+        Assert.assertEquals(Schema.Type.DOUBLE, merged.getField("score").schema().getType());
+        Assert.assertEquals(merged, SchemaMerger.merge(Arrays.asList(merged, V1, V2)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void incompatibleTest() {
+        Schema other = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"User\", \"fields\": ["
+            + "{\"name\": \"id\", \"type\": \"string\"}]}");
+        SchemaMerger.merge(Arrays.asList(V1, other));
+    }
+
+    @Test
+    public void resolveTest() throws IOException {
+        Schema merged = SchemaMerger.merge(Arrays.asList(V1, V2));
+        GenericRecord v1 = new GenericData.Record(V1);
+        v1.put("id", 7);
+        v1.put("name", "Jan");
+        v1.put("status", new GenericData.EnumSymbol(V1.getField("status").schema(), "NEW"));
+        GenericRecord v2 = new GenericData.Record(V2);
+        v2.put("id", 1L << 40);
+        v2.put("email", "jan@example.com");
+        v2.put("status", new GenericData.EnumSymbol(V2.getField("status").schema(), "ACTIVE"));
+        v2.put("score", 0.5);
+
+        ResolvingTranscoder transcoder = new ResolvingTranscoder(merged, null, MapEncoding.RECORDS);
+        ResolvingTranscoder projected = new ResolvingTranscoder(Projection.project(merged, Collections.singleton("id")),
+            Collections.singleton("id"), MapEncoding.RECORDS);
+        for (GenericRecord record : Arrays.asList(v1, v2, v1)) {
+            byte[] bytes = encode(record);
+            GenericRecord resolved = new GenericDatumReader<GenericRecord>(record.getSchema(), merged)
+                .read(null, DecoderFactory.get().binaryDecoder(bytes, null));
+            JsonOutput output = new JsonOutput();
+            transcoder.transcode(record.getSchema(), DecoderFactory.get().binaryDecoder(bytes, null), output);
+            Assert.assertEquals(new JsonBuilder(merged).build(resolved), output.toString());
+            output.reset();
+            projected.transcode(record.getSchema(), DecoderFactory.get().binaryDecoder(bytes, null), output);
+            Assert.assertEquals("{\"id\": " + record.get("id") + "}", output.toString());
+        }
+    }
+
+    @Test
+    public void logicalTypeTest() throws IOException {
+        // the same parsing fingerprint, but only the target reads the long as a timestamp
+        Schema writer = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"Event\", \"fields\": ["
+            + "{\"name\": \"time\", \"type\": \"long\"}]}");
+        Schema target = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"Event\", \"fields\": ["
+            + "{\"name\": \"time\", \"type\": {\"type\": \"long\", \"logicalType\": \"timestamp-millis\"}}]}");
+        GenericRecord event = new GenericData.Record(writer);
+        event.put("time", 1456749000250L);
+        byte[] bytes = encode(event);
+        JsonOutput output = new JsonOutput();
+        new ResolvingTranscoder(target, null, MapEncoding.RECORDS).transcode(writer, DecoderFactory.get().binaryDecoder(bytes, null), output);
+        Assert.assertEquals("{\"time\": \"2016-02-29T12:30:00.250Z\"}", output.toString());
+    }
+
+    private static List<String> names(Schema schema) {
+        List<String> names = new ArrayList<>();
+        for (Schema.Field field : schema.getFields()) {
+            names.add(field.name());
+        }
+        return names;
+    }
+
+    private static byte[] encode(GenericRecord record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(bytes, null);
+        new GenericDatumWriter<GenericRecord>(record.getSchema()).write(record, encoder);
+        encoder.flush();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,29 @@
+package com.rtbhouse.bq.avro;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import junit.framework.Assert;
+import org.apache.avro.Schema;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+public class SchemaMetadataTest {
+
+    @Test
+    public void cacheTest() throws IOException {
+        File file = new File(getClass().getResource("/avroschema.avsc").getFile());
+        Schema schema = new Schema.Parser().parse(file);
+        SchemaMetadata metadata = SchemaMetadata.of(schema);
+        Assert.assertSame(metadata, SchemaMetadata.of(new Schema.Parser().parse(file)));
+        Assert.assertNotSame(metadata, SchemaMetadata.of(schema, Collections.singleton("username")));
+        Assert.assertEquals(new SchemaConverter().convert(schema), metadata.getBigQuerySchema());
+
+        Configuration conf = new Configuration(false);
+        SchemaMetadata.store(conf, schema);
+        Schema loaded = SchemaMetadata.load(conf);
+        Assert.assertEquals(schema, loaded);
+        Assert.assertSame(loaded, SchemaMetadata.load(new Configuration(conf)));
+        Assert.assertSame(metadata, SchemaMetadata.of(loaded));
+    }
+}